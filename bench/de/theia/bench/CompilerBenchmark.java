@@ -0,0 +1,76 @@
+package de.theia.bench;
+
+import de.theia.vm.Compiler;
+import de.theia.vm.Language;
+import de.theia.vm.Lexer;
+import de.theia.vm.TokenStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compile throughput of {@link Compiler#compile()} for every language, from
+ * the source and from already recognized tokens
+ *
+ * @author maximilianstrauch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+
+    @Param({"LOOP", "WHILE", "GOTO"})
+    public Language language;
+
+    /**
+     * Number of statements of the source
+     */
+    @Param({"100", "10000", "1000000"})
+    public int statements;
+
+    /**
+     * Compile with fusion and summarization
+     */
+    @Param({"false", "true"})
+    public boolean optimize;
+
+    private String source;
+
+    private TokenStream tokens;
+
+    @Setup
+    public void setup() {
+        source = Programs.generate(language, statements);
+        tokens = TokenStream.tokenize(source);
+    }
+
+    @Benchmark
+    public int[] compile() {
+        return compile(new Lexer(source));
+    }
+
+    @Benchmark
+    public int[] compileTokens() {
+        return compile(new Lexer(tokens));
+    }
+
+    private int[] compile(Lexer lexer) {
+        Compiler c = new Compiler(lexer, language);
+        c.setFusion(optimize);
+        c.setSummarization(optimize);
+        return c.compile();
+    }
+
+}
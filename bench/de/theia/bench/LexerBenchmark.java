@@ -0,0 +1,63 @@
+package de.theia.bench;
+
+import de.theia.vm.Language;
+import de.theia.vm.Lexer;
+import de.theia.vm.Token;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lexing throughput: reads all tokens of a source using
+ * {@link Lexer#next()}
+ *
+ * @author maximilianstrauch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+    @Param({"GOTO", "WHILE"})
+    public Language language;
+
+    /**
+     * Number of statements of the source
+     */
+    @Param({"100", "10000", "1000000"})
+    public int statements;
+
+    private String source;
+
+    @Setup
+    public void setup() {
+        source = Programs.generate(language, statements);
+    }
+
+    @Benchmark
+    public int lex(Blackhole bh) {
+        Lexer lexer = new Lexer(source);
+        int n = 0;
+        while (lexer.hasNext()) {
+            Token t = lexer.next();
+            bh.consume(t);
+            bh.consume(lexer.getValue());
+            n++;
+        }
+        return n;
+    }
+
+}
@@ -0,0 +1,84 @@
+package de.theia.bench;
+
+import de.theia.vm.Language;
+
+/**
+ * Generates the programs used by the benchmarks
+ *
+ * @author maximilianstrauch
+ */
+final class Programs {
+
+    /**
+     * The faculty of x1 from the README (LOOP)
+     */
+    static final String FACULTY =
+            "x3 := x1 ;\n"
+            + "x2 := 1 ;\n"
+            + "loop x1 do\n"
+            + "    x2 := x2 * x3 ;\n"
+            + "    x3 := x3 - 1\n"
+            + "end ;\n"
+            + "x3 := 0";
+
+    /**
+     * x0 := x1 * x2 by counting in nested loops (LOOP)
+     */
+    static final String MULTIPLICATION =
+            "loop x1 do\n"
+            + "    loop x2 do\n"
+            + "        x0 := x0 + 1\n"
+            + "    end\n"
+            + "end";
+
+    /**
+     * Counts x1 down to zero (WHILE)
+     */
+    static final String COUNTDOWN =
+            "while x1 != 0 do\n"
+            + "    x1 := x1 - 1 ;\n"
+            + "    x2 := x2 + 1\n"
+            + "end";
+
+    private Programs() {
+    }
+
+    /**
+     * Generates a program of a given length. LOOP and WHILE programs nest
+     * a loop around every tenth statement, GOTO programs jump back every
+     * tenth line
+     *
+     * @param language The language
+     * @param statements The number of statements
+     * @return The source
+     */
+    static String generate(Language language, int statements) {
+        StringBuilder b = new StringBuilder(statements * 24);
+        for (int i = 1; i <= statements; i++) {
+            int x = i % 16 + 1, y = i % 7 + 1;
+            if (language == Language.GOTO) {
+                b.append(i).append(" : ");
+                if (i % 10 == 0) {
+                    b.append("if x").append(x).append(" = 0 goto ").append(i - 9);
+                } else {
+                    b.append('x').append(x).append(" := x").append(y)
+                            .append(" + ").append(i);
+                }
+            } else if (i % 10 == 0) {
+                b.append(language == Language.LOOP ? "loop x" : "while x")
+                        .append(x)
+                        .append(language == Language.LOOP ? "" : " != 0")
+                        .append(" do x").append(y).append(" := x").append(x)
+                        .append(" * 3 end");
+            } else {
+                b.append('x').append(x).append(" := x").append(y)
+                        .append(" - ").append(i);
+            }
+            if (i < statements) {
+                b.append(" ;\n");
+            }
+        }
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,121 @@
+package de.theia.bench;
+
+import de.theia.vm.Compiler;
+import de.theia.vm.ExecutionMode;
+import de.theia.vm.Language;
+import de.theia.vm.Lexer;
+import de.theia.vm.Register;
+import de.theia.vm.VM;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * VM throughput on the README faculty, the nested loop multiplication and
+ * a WHILE countdown. The secondary result "instructions" is the number of
+ * executed VM instructions per second
+ *
+ * @author maximilianstrauch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VMBenchmark {
+
+    @Param({"faculty", "multiplication", "countdown"})
+    public String workload;
+
+    /**
+     * Number of loop iterations; the multiplication runs sqrt(n) times
+     * sqrt(n) iterations
+     */
+    @Param({"100", "10000", "1000000"})
+    public int n;
+
+    @Param({"INTERPRETED", "DECODED", "COMPILED"})
+    public ExecutionMode mode;
+
+    /**
+     * Compile with fusion and summarization. Summarization replaces the
+     * inner loop of the multiplication by a single instruction
+     */
+    @Param({"false", "true"})
+    public boolean optimize;
+
+    /**
+     * Counts the executed instructions
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            instructions = 0;
+        }
+
+    }
+
+    private VM vm;
+
+    private Register initial;
+
+    @Setup
+    public void setup() {
+        String source;
+        Language language = Language.LOOP;
+        initial = new Register();
+        switch (workload) {
+            case "faculty":
+                source = Programs.FACULTY;
+                initial.setValue(1, n);
+                break;
+            case "multiplication":
+                source = Programs.MULTIPLICATION;
+                int root = (int) Math.sqrt(n);
+                initial.setValue(1, root);
+                initial.setValue(2, root);
+                break;
+            case "countdown":
+                source = Programs.COUNTDOWN;
+                language = Language.WHILE;
+                initial.setValue(1, n);
+                break;
+            default:
+                throw new IllegalArgumentException(workload);
+        }
+
+        Compiler c = new Compiler(new Lexer(source), language);
+        c.setFusion(optimize);
+        c.setSummarization(optimize);
+        vm = new VM(c.compile(), new Register(initial));
+        vm.setExecutionMode(mode);
+        vm.execute();
+    }
+
+    @Benchmark
+    public Register execute(Counters counters) {
+        vm.getRegister().reset(initial);
+        vm.reset();
+        vm.execute();
+        counters.instructions += vm.getSteps();
+        return vm.getRegister();
+    }
+
+}
@@ -0,0 +1,78 @@
+package de.theia.gui;
+
+import de.theia.vm.TokenStream;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+/**
+ * Caches the {@link TokenStream} of a document, so every version of the
+ * document is tokenized only once for the highlighting and the compiler
+ *
+ * @author maximilianstrauch
+ */
+public class DocumentTokens implements DocumentListener {
+
+    /**
+     * The tokenized document
+     */
+    private final Document document;
+
+    /**
+     * Counts the changes of the document
+     */
+    private int version;
+
+    /**
+     * The tokens of the document and the version they were created from
+     */
+    private TokenStream tokens;
+    private int tokensVersion;
+
+    /**
+     * Creates a new cache
+     *
+     * @param document The document to tokenize
+     */
+    public DocumentTokens(Document document) {
+        this.document = document;
+        this.tokensVersion = -1;
+        document.addDocumentListener(this);
+    }
+
+    /**
+     * Returns the tokens of the current document. Must be called in the EDT
+     *
+     * @return The tokens
+     */
+    public synchronized TokenStream get() {
+        if (tokensVersion != version) {
+            try {
+                tokens = TokenStream.tokenize(
+                        document.getText(0, document.getLength()));
+            } catch (BadLocationException e) {
+                // Can't happen for the whole document
+                throw new IllegalStateException(e);
+            }
+            tokensVersion = version;
+        }
+        return tokens;
+    }
+
+    @Override
+    public synchronized void insertUpdate(DocumentEvent e) {
+        version++;
+    }
+
+    @Override
+    public synchronized void removeUpdate(DocumentEvent e) {
+        version++;
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Style changes don't change the tokens
+    }
+
+}
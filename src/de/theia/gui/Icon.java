@@ -23,6 +23,7 @@ public class Icon {
             INFO = load("de.theia.res.Information", 32, 0),
             ADD = load("de.theia.res.Plus", 16, 0),
             BYTECODE = load("de.theia.res.RawAccess", 32, 0),
+            PROFILE = load("de.theia.res.compile", 32, 0),
             CLEAR = load("de.theia.res.BinEmpty", 16, 0),
             DIALOG_ALERT = load("de.theia.res.DialogIcons", 64, 0),
             DIALOG_QUESTION = load("de.theia.res.DialogIcons", 64, 1),
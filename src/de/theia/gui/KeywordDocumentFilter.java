@@ -1,39 +1,53 @@
 package de.theia.gui;
 
+import de.theia.vm.Token;
+import de.theia.vm.TokenStream;
 import java.awt.Color;
 import javax.swing.JTextPane;
 import javax.swing.SwingUtilities;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DocumentFilter;
+import javax.swing.text.Element;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
 import javax.swing.text.StyledDocument;
 
 /**
  * Document filter to highlight keywords, variables and numbers of the
- * LOOP, WHILE and GOTO language
+ * LOOP, WHILE and GOTO language. The tokens come from the same
+ * {@link TokenStream} the compiler uses, so the highlighting follows the
+ * rules of the compiler
  * 
  * @author maximilianstrauch
  */
 public  class KeywordDocumentFilter extends DocumentFilter {
 
-    /**
-     * The keywords to highlight
-     */
-    private static final String[] KEYWORDS = {
-        "loop", "do", "end", "while", "if", "then", "else", "goto"
-    };
-        
     /**
      * The underlying styled document
      */
     private final StyledDocument styledDocument;
+    
+    /**
+     * The tokens of the document
+     */
+    private final DocumentTokens tokens;
 
     /**
      * The attribute sets to style the different tokens
      */    
     private final AttributeSet neutral, keyword, var, num;
+    
+    /**
+     * The region edited since the last style update or <code>-1</code> if
+     * there are no edits
+     */
+    private int damageStart, damageEnd;
+    
+    /**
+     * Set if a style update is scheduled
+     */
+    private boolean scheduled;
  
     /**
      * Creates a new instance of this filter
@@ -41,6 +55,17 @@ public  class KeywordDocumentFilter extends DocumentFilter {
      * @param pane The pane to be used on
      */
     public KeywordDocumentFilter(JTextPane pane) {
+        this(pane, new DocumentTokens(pane.getDocument()));
+    }
+    
+    /**
+     * Creates a new instance of this filter sharing the tokens with others
+     * 
+     * @param pane The pane to be used on
+     * @param tokens The tokens of the document of the pane
+     */
+    public KeywordDocumentFilter(JTextPane pane, DocumentTokens tokens) {
+        this.tokens = tokens;
         styledDocument = pane.getStyledDocument();
         StyleContext styleContext = StyleContext.getDefaultStyleContext();
         
@@ -69,27 +94,88 @@ public  class KeywordDocumentFilter extends DocumentFilter {
                 StyleConstants.Bold, 
                 true
         );
+        damageStart = damageEnd = -1;
     }
 
     @Override
     public void insertString(FilterBypass fb, int offset, String text, 
             AttributeSet attributeSet) throws BadLocationException {
         super.insertString(fb, offset, text, attributeSet);
-        fireTextChanged();
+        inserted(offset, text == null ? 0 : text.length());
     }
 
     @Override
     public void remove(FilterBypass fb, int offset, int length) 
             throws BadLocationException {
         super.remove(fb, offset, length);
-        fireTextChanged();
+        removed(offset, length);
     }
 
     @Override
     public void replace(FilterBypass fb, int offset, int length, 
             String text, AttributeSet attributeSet) throws BadLocationException {
         super.replace(fb, offset, length, text, attributeSet);
-        fireTextChanged();
+        removed(offset, length);
+        inserted(offset, text == null ? 0 : text.length());
+    }
+
+    /**
+     * Adds inserted text to the damaged region
+     * 
+     * @param offset Where the text was inserted
+     * @param length The length of the text
+     */
+    private synchronized void inserted(int offset, int length) {
+        if (damageStart >= 0) {
+            // Move the damaged region behind the insertion
+            if (damageStart > offset) {
+                damageStart += length;
+            }
+            if (damageEnd >= offset) {
+                damageEnd += length;
+            }
+        }
+        damage(offset, offset + length);
+    }
+
+    /**
+     * Adds the position of removed text to the damaged region
+     * 
+     * @param offset Where the text was removed
+     * @param length The length of the removed text
+     */
+    private synchronized void removed(int offset, int length) {
+        if (damageStart >= 0) {
+            // Move the damaged region before the removal
+            if (damageStart > offset) {
+                damageStart = Math.max(offset, damageStart - length);
+            }
+            if (damageEnd > offset) {
+                damageEnd = Math.max(offset, damageEnd - length);
+            }
+        }
+        damage(offset, offset);
+    }
+
+    /**
+     * Extends the damaged region and schedules the style update unless it
+     * is already scheduled, so a burst of edits is styled in one pass
+     * 
+     * @param start Start of the damaged text
+     * @param end End of the damaged text
+     */
+    private void damage(int start, int end) {
+        if (damageStart < 0) {
+            damageStart = start;
+            damageEnd = end;
+        } else {
+            damageStart = Math.min(damageStart, start);
+            damageEnd = Math.max(damageEnd, end);
+        }
+        if (!scheduled) {
+            scheduled = true;
+            fireTextChanged();
+        }
     }
 
     /**
@@ -110,70 +196,56 @@ public  class KeywordDocumentFilter extends DocumentFilter {
     }
 
     /**
-     * Updates the text styles
+     * Updates the text styles of all lines touching the damaged region
      */
     private synchronized void update() throws BadLocationException {
-        char[] text = styledDocument.getText(0, styledDocument.getLength()).toCharArray();
+        int from = damageStart, to = damageEnd;
+        damageStart = damageEnd = -1;
+        scheduled = false;
+        
+        // Extend the region to whole lines since no token spans lines
+        int length = styledDocument.getLength();
+        Element root = styledDocument.getDefaultRootElement();
+        from = root.getElement(root.getElementIndex(
+                Math.max(0, Math.min(from, length)))).getStartOffset();
+        to = Math.min(length, root.getElement(root.getElementIndex(
+                Math.max(0, Math.min(to, length)))).getEndOffset());
+        if (to <= from) {
+            return;
+        }
         
-        // Clear existing styles
-        styledDocument.setCharacterAttributes(0, text.length, neutral, true);
+        // Clear existing styles of the region
+        styledDocument.setCharacterAttributes(from, to - from, neutral, true);
 
-        // Loop through the text
-        main: for (int i = 0; i < text.length; i++) {
-            for (String kw : KEYWORDS) {
-                if (match(kw, text, i)) {
-                    styledDocument.setCharacterAttributes(i, kw.length(), keyword, false);
-                    
-                    // Skip the rest of the keyword
-                    i += kw.length() - 1;
-                    continue main;
-                }
+        // Style the tokens of the region
+        TokenStream ts = tokens.get();
+        for (int t = ts.find(from); t < ts.size() && ts.getStart(t) < to; t++) {
+            AttributeSet style = styleOf(ts.getKind(t));
+            if (style != null) {
+                styledDocument.setCharacterAttributes(
+                        ts.getStart(t), ts.getLength(t), style, false);
             }
-            
-            // Check for numbers and variables
-            int k = i;
-            boolean isNumber = true;
-            if (text[k] == 'x' || text[k] == 'X') {
-                k++;
-                isNumber = false;
-            }
-            
-            while (k < text.length && Character.isDigit(text[k])) {
-                k++;
-            }
-            
-            if (k > i) {
-                styledDocument.setCharacterAttributes(i, k-i, isNumber ? num : var, false);
-            }
-            
-            // Skip the rest of the matched var/num
-            i = k;
         }
     }
     
     /**
-     * Tests if a char array contains a string "toMatch" starting from the current
-     * location "offset"
+     * Returns the style of a token
      * 
-     * @param toMatch The string to check for
-     * @param arr The char array to check
-     * @param offset The offset to begin
-     * @return <code>true</code> if the string "toMatch" starts at position
-     * "offset" in "arr" or <code>false</code>
+     * @param token The token
+     * @return The style or <code>null</code> if the token isn't highlighted
      */
-    public static final boolean match(String toMatch, char[] arr, int offset) {
-        int len = toMatch.length();
-        if (arr.length < offset+len) {
-            return false;
-        }
-        int j = 0;
-        for (int i = offset; i < offset+len; i++) {
-            if (toMatch.charAt(j) != arr[i]) {
-                return false;
-            }
-            j++;
+    private AttributeSet styleOf(Token token) {
+        switch (token) {
+            case LOOP: case DO: case END: case WHILE: 
+            case IF: case THEN: case ELSE: case GOTO:
+                return keyword;
+            case VAR:
+                return var;
+            case NUM:
+                return num;
+            default:
+                return null;
         }
-        return true;
     }
     
 }
@@ -0,0 +1,135 @@
+package de.theia.gui;
+
+import de.theia.vm.Register;
+import java.math.BigInteger;
+import java.util.ResourceBundle;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model to display the contents of a {@link Register}. Since the
+ * register does not notify about changes, the model is refreshed on
+ * demand using {@link #refresh()}; while a program runs it shows the
+ * snapshots taken by the VM (see {@link #refresh(Register)})
+ *
+ * @author maximilianstrauch
+ */
+public class RegisterTableModel extends AbstractTableModel {
+
+    /**
+     * Time between two snapshots while a program runs in ms
+     */
+    public static final int REFRESH_RATE = 250;
+
+    /**
+     * The displayed register
+     */
+    private final Register register;
+
+    /**
+     * The GUI strings
+     */
+    private final ResourceBundle messages;
+
+    /**
+     * Register numbers and values of the last refresh
+     */
+    private int[] keys;
+    private BigInteger[] values;
+
+    /**
+     * Creates a new model
+     *
+     * @param register The register to display
+     * @param messages The GUI strings
+     */
+    public RegisterTableModel(Register register, ResourceBundle messages) {
+        this.register = register;
+        this.messages = messages;
+        this.keys = new int[0];
+        this.values = new BigInteger[0];
+    }
+
+    /**
+     * Returns the displayed register
+     *
+     * @return The register
+     */
+    public Register getRegister() {
+        return register;
+    }
+
+    /**
+     * Reads the current register contents and updates the table. Must be
+     * called in the EDT
+     */
+    public void refresh() {
+        refresh(register);
+    }
+
+    /**
+     * Shows the contents of another register file, e.g. a snapshot of the
+     * displayed register. Must be called in the EDT
+     *
+     * @param source The register file to show
+     */
+    public void refresh(Register source) {
+        int[] k = source.getRegisters();
+        BigInteger[] v = new BigInteger[k.length];
+        for (int i = 0; i < k.length; i++) {
+            v[i] = source.peekBig(k[i]);
+        }
+        keys = k;
+        values = v;
+        fireTableDataChanged();
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return messages.getString("registerCol" + column);
+    }
+
+    @Override
+    public int getRowCount() {
+        return keys.length;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return 2;
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        if (columnIndex == 0) {
+            return "x" + keys[rowIndex];
+        } else {
+            return values[rowIndex];
+        }
+    }
+
+    @Override
+    public Class<?> getColumnClass(int columnIndex) {
+        if (columnIndex == 0) {
+            return String.class;
+        } else {
+            // Displayed and edited as text since values may be big
+            return Object.class;
+        }
+    }
+
+    @Override
+    public boolean isCellEditable(int rowIndex, int columnIndex) {
+        return columnIndex == 1;
+    }
+
+    @Override
+    public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+        try {
+            register.setBig(keys[rowIndex], new BigInteger(String.valueOf(aValue).trim()));
+        } catch (Exception e) {
+            register.setValue(keys[rowIndex], 0);
+        }
+        refresh();
+    }
+
+}
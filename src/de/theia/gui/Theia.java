@@ -11,6 +11,7 @@ import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -25,7 +26,10 @@ import javax.swing.SwingConstants;
 import javax.swing.SwingWorker;
 import javax.swing.text.AbstractDocument;
 import de.theia.vm.Language;
-import de.theia.vm.Lexer;
+import de.theia.vm.Metrics;
+import de.theia.vm.ProgramCache;
+import de.theia.vm.TokenStream;
+import de.theia.vm.NumericMode;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import javax.swing.JFrame;
@@ -37,8 +41,10 @@ import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
 import javax.swing.text.TabSet;
 import javax.swing.text.TabStop;
-import de.theia.vm.Compiler;
 import de.theia.vm.PrettyPrint;
+import de.theia.vm.Profile;
+import de.theia.vm.Progress;
+import de.theia.vm.ProgressListener;
 import de.theia.vm.RecognitionException;
 import de.theia.vm.VM;
 import de.theia.vm.VMException;
@@ -48,14 +54,25 @@ import java.awt.Window;
 import java.awt.event.KeyEvent;
 import java.lang.reflect.Method;
 import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
-import java.util.TimeZone;
 import javax.swing.InputMap;
 import javax.swing.JTextArea;
 import javax.swing.KeyStroke;
 import javax.swing.text.DefaultEditorKit;
+import java.awt.Color;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
 
 /**
  * The main GUI
@@ -74,6 +91,16 @@ public class Theia extends JPanel implements ActionListener {
      */
     public static final String APP_VERSION = "1.0";
     
+    /**
+     * Number of compiled programs kept in the cache
+     */
+    private static final int CACHE_SIZE = 16;
+    
+    /**
+     * Time between the last edit and the background compile in ms
+     */
+    private static final int COMPILE_DELAY = 300;
+    
     /**
      * This frame
      */
@@ -94,11 +121,31 @@ public class Theia extends JPanel implements ActionListener {
      */
     private JTable registers;
     
+    /**
+     * The registers shown in the table and used to run the programs
+     */
+    private final Register register;
+    
+    /**
+     * Model of the register table
+     */
+    private RegisterTableModel registerModel;
+    
     /**
      * Used to set the programming language used for the register machine
      */
     private JComboBox<Language> modeSelection;
     
+    /**
+     * Enables the fusion of instructions by the compiler
+     */
+    private JCheckBox optimize;
+    
+    /**
+     * Used to set the range of the register values
+     */
+    private JComboBox<NumericMode> numericSelection;
+    
     /**
      * Status bar at the bottom
      */
@@ -107,13 +154,28 @@ public class Theia extends JPanel implements ActionListener {
     /**
      * Buttons to alter the registers
      */
-    private JButton add, clear, run, stop, preview;
+    private JButton add, clear, run, stop, preview, profile;
     
     /**
      * Main execution object
      */
     private ProgramExecutor executor;
     
+    /**
+     * Compiled programs, so unchanged sources are not compiled again
+     */
+    private final ProgramCache programCache;
+    
+    /**
+     * Compiles the source while it is edited
+     */
+    private BackgroundCompiler backgroundCompiler;
+    
+    /**
+     * The tokens of the source, shared by the highlighting and the compiler
+     */
+    private DocumentTokens sourceTokens;
+    
     /**
      * Singelton object
      */
@@ -129,6 +191,8 @@ public class Theia extends JPanel implements ActionListener {
         
         // Load the GUI strings
         messages = ResourceBundle.getBundle("de.theia.res.MessagesBundle");
+        register = new Register();
+        programCache = new ProgramCache(CACHE_SIZE);
         
         initGui();
         setStatus("welcome");
@@ -139,8 +203,31 @@ public class Theia extends JPanel implements ActionListener {
      */
     private void initGui() {
         modeSelection = new JComboBox<>(Language.values());
+        optimize = new JCheckBox(messages.getString("optimize"), true);
+        numericSelection = new JComboBox<>(NumericMode.values());
+        
+        // Settings changing the bytecode require a new background compile
+        ActionListener settingsListener = new ActionListener() {
+            
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                backgroundCompiler.changed();
+            }
+        };
+        modeSelection.addActionListener(settingsListener);
+        optimize.addActionListener(settingsListener);
+        
+        // Only INT32 programs can be profiled
+        numericSelection.addActionListener(new ActionListener() {
+            
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                profile.setEnabled(canProfile());
+            }
+        });
         statusBar = new JLabel();registers = new JTable();
-        registers.setModel(Register.getInstance());
+        registerModel = new RegisterTableModel(register, messages);
+        registers.setModel(registerModel);
         
         // Create register container
         JTabbedPane registerPane = new JTabbedPane();
@@ -177,10 +264,15 @@ public class Theia extends JPanel implements ActionListener {
             source.setParagraphAttributes(paraSet, false);
             
             // Apply the filter
+            sourceTokens = new DocumentTokens(source.getDocument());
             ((AbstractDocument) source.getDocument()).setDocumentFilter(
-                    new KeywordDocumentFilter(source)
+                    new KeywordDocumentFilter(source, sourceTokens)
             );
             
+            // Compile while editing
+            backgroundCompiler = new BackgroundCompiler();
+            source.getDocument().addDocumentListener(backgroundCompiler);
+            
             sourceWrap.setBorder(BorderFactory.createEmptyBorder(0, 4, 0, 4));
             sourceWrap.add(new JScrollPane(source), BorderLayout.CENTER);
         }
@@ -232,6 +324,15 @@ public class Theia extends JPanel implements ActionListener {
         statusBar.setText(status);
     }
     
+    /**
+     * Tests if the selected numeric mode supports profiling
+     * 
+     * @return <code>true</code> for {@link NumericMode#INT32}
+     */
+    private boolean canProfile() {
+        return numericSelection.getSelectedItem() == NumericMode.INT32;
+    }
+    
     /**
      * Creates the {@link JToolBar} for this GUI
      * 
@@ -252,13 +353,21 @@ public class Theia extends JPanel implements ActionListener {
         toolBar.add(Box.createHorizontalStrut(4));
         toolBar.add(preview = createButton("previewBytecode", Icon.BYTECODE));
         toolBar.add(Box.createHorizontalStrut(4));
+        toolBar.add(profile = createButton("profile", Icon.PROFILE));
+        toolBar.add(Box.createHorizontalStrut(4));
         toolBar.add(createButton("info", Icon.INFO));
         toolBar.add(Box.createHorizontalGlue());
         
-        // Add operation mode selector
+        // Add optimization toggle and operation mode selector
+        toolBar.add(optimize);
+        toolBar.add(Box.createHorizontalStrut(4));
         toolBar.add(new JLabel(messages.getString("operationMode")));
         modeSelection.setMaximumSize(new Dimension(60, 60));
         toolBar.add(modeSelection);
+        toolBar.add(Box.createHorizontalStrut(4));
+        toolBar.add(new JLabel(messages.getString("numericMode")));
+        numericSelection.setMaximumSize(new Dimension(100, 60));
+        toolBar.add(numericSelection);
         
         return toolBar;
     }    
@@ -297,7 +406,8 @@ public class Theia extends JPanel implements ActionListener {
         
         if (e.getSource() == clear) {
             // Clear all registers memory
-            Register.getInstance().clear();
+            register.clear();
+            registerModel.refresh();
         }
         
         if (e.getSource() == add) {
@@ -320,16 +430,15 @@ public class Theia extends JPanel implements ActionListener {
             
             if (retval == JOptionPane.OK_OPTION) {
                 // Apply operation
-                Register
-                    .getInstance()
-                    .setValue((int) reg.getValue(), (int) val.getValue());
+                register.setValue((int) reg.getValue(), (int) val.getValue());
+                registerModel.refresh();
             }
             return;
         }
         
         // Execution action
         
-        if ("RUN".equals(cmd)) {
+        if ("RUN".equals(cmd) || "PROFILE".equals(cmd)) {
             if (executor != null) {
                 executor.skipDone();
                 executor.terminate();
@@ -344,7 +453,7 @@ public class Theia extends JPanel implements ActionListener {
             }
 
             // Run the program
-            executor = new ProgramExecutor(bytecode);
+            executor = new ProgramExecutor(bytecode, "PROFILE".equals(cmd));
             executor.before();
             executor.execute();
         } else if ("STOP".equals(cmd)) {
@@ -380,12 +489,19 @@ public class Theia extends JPanel implements ActionListener {
      * @return The compiled bytecode
      */
     private int[] compile() {
+        // Use the result of the background compile if it is up to date
+        int[] ready = backgroundCompiler.await();
+        if (ready != null) {
+            return ready;
+        }
+        
         try {
-            String txt = source.getText();
-            Lexer l = new Lexer(txt);
-            Compiler c = new Compiler(l, (Language) modeSelection.getSelectedItem());
-            int[] bytecode = (int[]) c.compile();
-            return bytecode;
+            return programCache.compile(
+                    sourceTokens.get(),
+                    (Language) modeSelection.getSelectedItem(),
+                    optimize.isSelected(),
+                    optimize.isSelected()
+            );
         } catch (RecognitionException e) {
             if (e.hasLineInfo()) {
                 showAlertModal(MessageFormat.format(
@@ -447,15 +563,24 @@ public class Theia extends JPanel implements ActionListener {
     }
     
     /**
-     * {@link SwingWorker} to execute the VM and run the program
+     * {@link SwingWorker} to execute the VM and run the program. The VM 
+     * publishes a snapshot a few times per second which is shown in the 
+     * status bar and the register table
      */
-    private class ProgramExecutor extends SwingWorker<String, Void> {
+    private class ProgramExecutor extends SwingWorker<String, Progress> {
     
         /**
          * The virtual machine to execute
          */
         private final VM vm;
         
+        /**
+         * The program and its execution counts or <code>null</code> if not 
+         * profiled
+         */
+        private final int[] bytecode;
+        private final Profile counts;
+        
         /**
          * The VM exception object if any
          */
@@ -466,13 +591,20 @@ public class Theia extends JPanel implements ActionListener {
          */
         private boolean userTerminated, skipDone;
         
-        /**
-         * Duration of program execution
-         */
-        private long duration;
-        
-        public ProgramExecutor(int[] bytecode) {
-            this.vm = new VM(bytecode);
+        public ProgramExecutor(int[] bytecode, boolean profiled) {
+            this.vm = new VM(bytecode, register);
+            this.vm.setNumericMode(
+                    (NumericMode) numericSelection.getSelectedItem());
+            this.bytecode = bytecode;
+            this.counts = profiled ? new Profile(bytecode) : null;
+            this.vm.setProfile(counts);
+            this.vm.setProgressListener(new ProgressListener() {
+
+                @Override
+                public void progress(Progress progress) {
+                    publish(progress);
+                }
+            }, RegisterTableModel.REFRESH_RATE);
             this.userTerminated = false;
         }
         
@@ -486,7 +618,10 @@ public class Theia extends JPanel implements ActionListener {
             registers.setEnabled(false);
             source.setEnabled(false);
             modeSelection.setEnabled(false);
+            optimize.setEnabled(false);
+            numericSelection.setEnabled(false);
             preview.setEnabled(false);
+            profile.setEnabled(false);
             add.setEnabled(false);
             clear.setEnabled(false);
             setStatus("executing");
@@ -499,22 +634,39 @@ public class Theia extends JPanel implements ActionListener {
         
         @Override
         protected String doInBackground() throws Exception {
-            duration = System.currentTimeMillis();
             try {
                 vm.execute();
             } catch (VMException e) {
                 this.exception = e;
+            } catch (RuntimeException e) {
+                // Never report a failed run as finished
+                this.exception = new VMException(e.toString(), e);
             }
-            duration = System.currentTimeMillis() - duration;
             return null;
         }
 
+        @Override
+        protected void process(List<Progress> chunks) {
+            if (skipDone || isDone()) {
+                return;
+            }
+            
+            // Only the latest snapshot is of interest
+            Progress last = chunks.get(chunks.size() - 1);
+            registerModel.refresh(last.getRegister());
+            setStatus(MessageFormat.format(
+                    messages.getString("status.progress"), 
+                    last.getSteps(), last.getPc()));
+        }
+
         @Override
         protected void done() {
             if (skipDone) {
                 return;
             }
             
+            registerModel.refresh();
+            
             if (exception != null) {
                 showAlertModal(MessageFormat.format(
                         messages.getString("alert.vmErr"), 
@@ -522,12 +674,22 @@ public class Theia extends JPanel implements ActionListener {
                 ));
             }
             
-            SimpleDateFormat sdf = new SimpleDateFormat("ss.SSS");
-            Date d = new Date(duration - TimeZone.getDefault().getRawOffset());
+            // Report the run time and the throughput of the VM
+            long nanos = vm.getRunNanos();
             String msg = messages.getString(userTerminated ?
                     "info.terminated" : "info.finished");
-            
-            showInfoModal(MessageFormat.format(msg, sdf.format(d)));
+            msg = MessageFormat.format(msg, nanos / 1e9, vm.getSteps(), 
+                    nanos > 0 ? vm.getSteps() * 1e9 / nanos : 0);
+            if (counts != null) {
+                // Show the bytecode annotated with the execution counts
+                JTextArea ta = new JTextArea(
+                        PrettyPrint.print(bytecode, counts), 18, 56);
+                ta.setFont(Font.decode(Font.MONOSPACED));
+                ta.setEditable(false);
+                showInfoModal(new Object[] {msg, new JScrollPane(ta)});
+            } else {
+                showInfoModal(msg);
+            }
             
             // Release controls
             run.setEnabled(true);
@@ -535,7 +697,10 @@ public class Theia extends JPanel implements ActionListener {
             registers.setEnabled(true);
             source.setEnabled(true);
             modeSelection.setEnabled(true);
+            optimize.setEnabled(true);
+            numericSelection.setEnabled(true);
             preview.setEnabled(true);
+            profile.setEnabled(canProfile());
             add.setEnabled(true);
             clear.setEnabled(true);
             setStatus("finished");
@@ -543,6 +708,221 @@ public class Theia extends JPanel implements ActionListener {
         
     }
     
+    /**
+     * Compiles the source in the background shortly after it was edited.
+     * Compile errors are highlighted in the source and shown in the status 
+     * bar. Every edit supersedes the running compile, only the result of the 
+     * latest one is shown. Since the programs are compiled through the 
+     * {@link #programCache} a run of the compiled source starts immediately
+     */
+    private class BackgroundCompiler implements DocumentListener, 
+            ActionListener {
+        
+        /**
+         * Delays the compile until the user paused typing
+         */
+        private final Timer timer;
+        
+        /**
+         * The thread compiling the programs
+         */
+        private final ExecutorService worker;
+        
+        /**
+         * Counts the changes of the source and the compiler settings
+         */
+        private volatile int generation;
+        
+        /**
+         * The latest compile and the generation it compiles
+         */
+        private Future<int[]> pending;
+        private int pendingGeneration;
+        
+        /**
+         * Paints compile errors
+         */
+        private final Highlighter.HighlightPainter errorPainter;
+        
+        /**
+         * The highlight of the current compile error or <code>null</code>
+         */
+        private Object errorTag;
+        
+        public BackgroundCompiler() {
+            timer = new Timer(COMPILE_DELAY, this);
+            timer.setRepeats(false);
+            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Theia compiler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            errorPainter = new DefaultHighlighter.DefaultHighlightPainter(
+                    new Color(0xffb0b0)
+            );
+            pendingGeneration = -1;
+        }
+        
+        /**
+         * Schedules a compile after the source or the settings changed. 
+         * Must be called in the EDT
+         */
+        public void changed() {
+            generation++;
+            timer.restart();
+        }
+        
+        /**
+         * Returns the bytecode of the latest compile if it matches the 
+         * current source and settings. Waits for a running compile. Must be
+         * called in the EDT
+         * 
+         * @return The bytecode or <code>null</code> if the source has to be
+         * compiled (again)
+         */
+        public int[] await() {
+            if (timer.isRunning() || pending == null 
+                    || pendingGeneration != generation) {
+                return null;
+            }
+            try {
+                return pending.get();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            changed();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            changed();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Style changes of the highlighting don't change the source
+        }
+        
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            final TokenStream tokens = sourceTokens.get();
+            final Language language = (Language) modeSelection.getSelectedItem();
+            final boolean optimized = optimize.isSelected();
+            final int gen = generation;
+            
+            if (pending != null) {
+                // Interrupts a running compile, the compiler gives up then
+                pending.cancel(true);
+            }
+            pendingGeneration = gen;
+            pending = worker.submit(new Callable<int[]>() {
+                
+                @Override
+                public int[] call() {
+                    if (gen != generation) {
+                        return null; // Superseded while queued
+                    }
+                    try {
+                        int[] bytecode = programCache.compile(
+                                tokens, language, optimized, optimized
+                        );
+                        show(gen, null);
+                        return bytecode;
+                    } catch (RecognitionException e) {
+                        show(gen, e);
+                        throw e;
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Shows the result of a compile in the EDT unless it is outdated
+         * 
+         * @param gen The generation compiled
+         * @param error The compile error or <code>null</code> on success
+         */
+        private void show(final int gen, final RecognitionException error) {
+            SwingUtilities.invokeLater(new Runnable() {
+                
+                @Override
+                public void run() {
+                    if (gen == generation) {
+                        showError(error);
+                    }
+                }
+            });
+        }
+        
+        /**
+         * Highlights a compile error in the source or removes the highlight
+         * 
+         * @param error The compile error or <code>null</code> to remove it
+         */
+        private void showError(RecognitionException error) {
+            if (errorTag != null) {
+                source.getHighlighter().removeHighlight(errorTag);
+                errorTag = null;
+            }
+            source.setToolTipText(null);
+            if (error == null) {
+                setStatus("compiled");
+                return;
+            }
+            
+            String msg;
+            if (error.hasLineInfo()) {
+                msg = MessageFormat.format(
+                        messages.getString("status.compileErrLn"), 
+                        error.getLine(), error.getPos(), error.getMessage()
+                );
+            } else {
+                msg = MessageFormat.format(
+                        messages.getString("status.compileErr"), 
+                        error.getMessage()
+                );
+            }
+            setStatus(msg);
+            source.setToolTipText(msg);
+            
+            // Highlight the error position or at least its line
+            int length = source.getDocument().getLength();
+            int start = -1, end = -1;
+            if (error.hasSelectionInfo()) {
+                start = error.getStart();
+                end = error.getEnd();
+            } else if (error.hasLineInfo()) {
+                Element root = source.getDocument().getDefaultRootElement();
+                int line = error.getLine() - 1;
+                if (line >= 0 && line < root.getElementCount()) {
+                    start = root.getElement(line).getStartOffset();
+                    end = root.getElement(line).getEndOffset() - 1;
+                }
+            }
+            if (start < 0 || length == 0) {
+                return;
+            }
+            start = Math.min(start, length - 1);
+            end = Math.min(Math.max(end, start + 1), length);
+            try {
+                errorTag = source.getHighlighter().addHighlight(
+                        start, end, errorPainter
+                );
+            } catch (BadLocationException e) {
+                // Can't happen since the offsets are checked above
+            }
+        }
+        
+    }
+    
     /**
      * Applies the biggest icon to the Mac Dock.
      * 
@@ -613,6 +993,9 @@ public class Theia extends JPanel implements ActionListener {
      */
     public static void main(String[] args) {
         
+        // Publish the run and compile metrics for JMX clients
+        Metrics.register();
+        
         // The Nimbus LaF is nice ...
         try {
             for (LookAndFeelInfo info : UIManager.getInstalledLookAndFeels()) {
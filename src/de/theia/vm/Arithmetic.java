@@ -0,0 +1,63 @@
+package de.theia.vm;
+
+/**
+ * Arithmetic helpers of the {@link VM} which are too complex to be inlined
+ * into the interpreter loops. Public since they are also called by the
+ * classes generated by the {@link JitCompiler}
+ *
+ * @author maximilianstrauch
+ */
+public final class Arithmetic {
+
+    private Arithmetic() {
+        // Static class
+    }
+
+    /**
+     * Computes the effect of repeating the subtraction <code>d := d - k</code>
+     * (where a negative result becomes zero) <code>n1 * n2</code> times in
+     * constant time. The counts are taken as unsigned numbers, like the
+     * loop counter of the VM which only stops at zero
+     *
+     * @param d The initial value
+     * @param k The value to subtract
+     * @param n1 The first count
+     * @param n2 The second count
+     * @return The value after all subtractions
+     */
+    public static int subtractRepeatedly(int d, int k, int n1, int n2) {
+        // Product of two unsigned 32 bit numbers fits into 64 bits unsigned
+        long n = (n1 & 0xffffffffL) * (n2 & 0xffffffffL);
+        if (n == 0) {
+            return d;
+        }
+
+        // Only the initial value can be negative
+        if (d < 0) {
+            d = d - k < 0 ? 0 : d - k;
+            n--;
+        }
+
+        if (k >= 0) {
+            // Decreases until it stays at zero
+            if (k == 0 || n == 0) {
+                return d;
+            }
+            if (Long.compareUnsigned(n, d / k) > 0) {
+                return 0;
+            }
+            return d - (int) n * k;
+        }
+
+        // Negative k: increases by -k until the value overflows, which
+        // resets it to zero
+        long m = -(long) k;
+        long reset = (Integer.MAX_VALUE - d) / m + 1;
+        if (Long.compareUnsigned(n, reset) < 0) {
+            return (int) (d + n * m);
+        }
+        long period = Integer.MAX_VALUE / m + 1;
+        return (int) (Long.remainderUnsigned(n - reset, period) * m);
+    }
+
+}
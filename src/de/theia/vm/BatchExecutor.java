@@ -0,0 +1,265 @@
+package de.theia.vm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Runs one program on many input vectors in parallel. Element i of an input
+ * vector is the initial value of register x(i+1), all other registers
+ * start at zero.
+ *
+ * The program is decoded or compiled once and shared by all runs. The
+ * inputs are read while the program runs, but only a limited number of runs
+ * is in flight at any time (see {@link #setWindow(int)}). The results are
+ * passed on in the order of the inputs. A failing run doesn't affect the
+ * other runs; its exception is reported in its {@link BatchResult}, other
+ * exceptions than {@link VMException} wrapped in one. Every run can be
+ * limited in
+ * instructions and time, so non-terminating programs don't block the batch.
+ *
+ * @author maximilianstrauch
+ */
+public class BatchExecutor {
+
+    /**
+     * Holds the prepared program, never executed itself
+     */
+    private final VM template;
+
+    /**
+     * The pool running the programs
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Maximum number of runs in flight
+     */
+    private int window;
+
+    /**
+     * The budget of every run (see {@link VM#setMaxSteps(long)} and
+     * {@link VM#setTimeLimit(long)})
+     */
+    private long maxSteps, timeLimit;
+
+    /**
+     * Set to stop the current batch
+     */
+    private volatile boolean stopped;
+
+    /**
+     * The runs in flight of the current batch
+     */
+    private volatile ConcurrentLinkedDeque<RunTask> running;
+
+    /**
+     * Creates a batch executor running on the common pool
+     *
+     * @param bytecode The program to run
+     * @param mode How the program is executed
+     */
+    public BatchExecutor(int[] bytecode, ExecutionMode mode) {
+        this(bytecode, mode, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a batch executor
+     *
+     * @param bytecode The program to run
+     * @param mode How the program is executed
+     * @param pool The pool to run the programs on
+     */
+    public BatchExecutor(int[] bytecode, ExecutionMode mode, ForkJoinPool pool) {
+        this.template = new VM(bytecode);
+        this.template.setExecutionMode(mode);
+        this.template.prepare();
+        this.pool = pool;
+        this.window = 4 * pool.getParallelism();
+        this.maxSteps = Long.MAX_VALUE;
+    }
+
+    /**
+     * Limits the number of instructions executed by every run
+     *
+     * @param maxSteps The maximum number of instructions or
+     * {@link Long#MAX_VALUE} for no limit (the default)
+     */
+    public void setMaxSteps(long maxSteps) {
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Limits the run time of every run
+     *
+     * @param millis The maximum run time in milliseconds or zero for no
+     * limit (the default)
+     */
+    public void setTimeLimit(long millis) {
+        this.timeLimit = millis;
+    }
+
+    /**
+     * Sets how the values of every run are stored and computed (see 
+     * {@link VM#setNumericMode(NumericMode)})
+     * 
+     * @param numericMode The numeric mode
+     */
+    public void setNumericMode(NumericMode numericMode) {
+        template.setNumericMode(numericMode);
+    }
+
+    /**
+     * Sets the maximum number of runs in flight, i.e. started but not yet
+     * passed on to the output. The default is four times the parallelism
+     * of the pool
+     *
+     * @param window The maximum number of runs in flight
+     */
+    public void setWindow(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        this.window = window;
+    }
+
+    /**
+     * Runs the program for all inputs and passes the results to the output
+     * in the order of the inputs. Returns after the last result was passed
+     * on or the batch was stopped. Only one batch can be executed at a time
+     *
+     * @param inputs The input vectors
+     * @param output Receives the results. Called on the calling thread; if 
+     * it throws an exception the runs in flight are cancelled
+     */
+    public void execute(Iterator<int[]> inputs, Consumer<BatchResult> output) {
+        stopped = false;
+        ConcurrentLinkedDeque<RunTask> running = new ConcurrentLinkedDeque<>();
+        this.running = running;
+        long index = 0;
+        try {
+            while (!stopped) {
+                // Fill the window, then wait for the oldest run
+                while (running.size() < window && inputs.hasNext()) {
+                    running.add(new RunTask(index++, inputs.next()));
+                    pool.execute(running.peekLast());
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+                BatchResult result = running.peek().join();
+                running.poll();
+                if (!stopped) {
+                    output.accept(result);
+                }
+            }
+        } finally {
+            for (RunTask task : running) {
+                task.cancel();
+            }
+        }
+    }
+
+    /**
+     * Runs the program for all inputs
+     *
+     * @param inputs The input vectors
+     * @return The results in the order of the inputs
+     */
+    public List<BatchResult> execute(Iterable<int[]> inputs) {
+        final List<BatchResult> results = new ArrayList<>();
+        execute(inputs.iterator(), new Consumer<BatchResult>() {
+            @Override
+            public void accept(BatchResult result) {
+                results.add(result);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Stops the current batch. Runs in flight are stopped and no further
+     * results are passed on
+     */
+    public void stop() {
+        stopped = true;
+        ConcurrentLinkedDeque<RunTask> r = running;
+        if (r != null) {
+            for (RunTask task : r) {
+                task.stop();
+            }
+        }
+    }
+
+    /**
+     * Runs the program for one input vector
+     */
+    private class RunTask extends RecursiveTask<BatchResult> {
+
+        private final long index;
+
+        private final int[] input;
+
+        private volatile VM vm;
+
+        /**
+         * Set if the run is no longer needed
+         */
+        private volatile boolean cancelled;
+
+        RunTask(long index, int[] input) {
+            this.index = index;
+            this.input = input;
+        }
+
+        @Override
+        protected BatchResult compute() {
+            Register register = new Register();
+            for (int i = 0; i < input.length; i++) {
+                register.setValue(i + 1, input[i]);
+            }
+
+            VM v = new VM(template, register);
+            v.setMaxSteps(maxSteps);
+            v.setTimeLimit(timeLimit);
+            vm = v;
+            if (stopped || cancelled) {
+                v.stop();
+            }
+            try {
+                ExitStatus status = v.execute();
+                return new BatchResult(index, register, status, v.getSteps(),
+                        null);
+            } catch (VMException e) {
+                return new BatchResult(index, register, v.getExitStatus(),
+                        v.getSteps(), e);
+            } catch (RuntimeException e) {
+                // Any other fault of this run must not abort the batch
+                return new BatchResult(index, register, v.getExitStatus(),
+                        v.getSteps(), new VMException(e.toString(), e));
+            }
+        }
+
+        void stop() {
+            VM v = vm;
+            if (v != null) {
+                v.stop();
+            }
+        }
+
+        /**
+         * Stops the run or prevents it from starting
+         */
+        void cancel() {
+            cancelled = true;
+            cancel(false);
+            stop();
+        }
+
+    }
+
+}
@@ -0,0 +1,123 @@
+package de.theia.vm;
+
+import java.math.BigInteger;
+
+/**
+ * The result of one run of a {@link BatchExecutor}
+ *
+ * @author maximilianstrauch
+ */
+public class BatchResult {
+
+    /**
+     * Position of the input vector in the batch
+     */
+    private final long index;
+
+    /**
+     * The registers after the run
+     */
+    private final Register register;
+
+    /**
+     * Why the run ended
+     */
+    private final ExitStatus status;
+
+    /**
+     * Number of executed instructions
+     */
+    private final long steps;
+
+    /**
+     * The exception which stopped the run or <code>null</code>
+     */
+    private final VMException exception;
+
+    BatchResult(long index, Register register, ExitStatus status, long steps,
+            VMException exception) {
+        this.index = index;
+        this.register = register;
+        this.status = status;
+        this.steps = steps;
+        this.exception = exception;
+    }
+
+    /**
+     * Returns the position of the input vector in the batch
+     *
+     * @return The index starting at zero
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the registers after the run. If the run failed these are the
+     * registers at the time of the failure
+     *
+     * @return The registers
+     */
+    public Register getRegister() {
+        return register;
+    }
+
+    /**
+     * Returns the value of a register after the run
+     *
+     * @param register The register number
+     * @return The value
+     */
+    public int getValue(int register) {
+        return this.register.peek(register);
+    }
+
+    /**
+     * Returns the full value of a register after the run (see 
+     * {@link NumericMode#ARBITRARY})
+     *
+     * @param register The register number
+     * @return The value
+     */
+    public BigInteger getBigValue(int register) {
+        return this.register.peekBig(register);
+    }
+
+    /**
+     * Checks if the program finished without an exception and within its
+     * budget
+     *
+     * @return <code>true</code> on success
+     */
+    public boolean isSuccess() {
+        return exception == null && status == ExitStatus.FINISHED;
+    }
+
+    /**
+     * Returns why the run ended
+     *
+     * @return The exit status
+     */
+    public ExitStatus getExitStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the number of executed instructions
+     *
+     * @return The number of instructions
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Returns the exception which stopped the run
+     *
+     * @return The exception or <code>null</code> if the run succeeded
+     */
+    public VMException getException() {
+        return exception;
+    }
+
+}
@@ -0,0 +1,196 @@
+package de.theia.vm;
+
+/**
+ * Decides when a running program has to end. A program calls
+ * {@link #check(long, int)} on backward jumps only, so straight-line code
+ * isn't slowed down; the clock is only read on every
+ * {@link #CLOCK_INTERVAL}th call and only if there is a time limit or a
+ * {@link Sampler}.
+ *
+ * @author maximilianstrauch
+ */
+final class Budget {
+
+    /**
+     * Number of checks between two readings of the clock
+     */
+    static final int CLOCK_INTERVAL = 1024;
+
+    /**
+     * The maximum number of instructions to execute
+     */
+    private long maxSteps;
+
+    /**
+     * The number of instructions executed before the current run
+     */
+    private long base;
+
+    /**
+     * The maximum run time in nanoseconds or zero for no limit
+     */
+    private long timeLimit;
+
+    /**
+     * The end of the run time as {@link System#nanoTime()}
+     */
+    private long deadline;
+
+    /**
+     * Number of checks until the clock is read again
+     */
+    private int countdown;
+
+    /**
+     * Receives the progress or <code>null</code>
+     */
+    private Sampler sampler;
+
+    /**
+     * The time between two samples in nanoseconds
+     */
+    private long sampleInterval;
+
+    /**
+     * The time of the next sample as {@link System#nanoTime()}
+     */
+    private long nextSample;
+
+    /**
+     * Set if the clock has to be read
+     */
+    private boolean clocked;
+
+    /**
+     * Set by {@link #stop()}, may be set by any thread
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Why the program has to end or <code>null</code> if it can continue
+     */
+    private ExitStatus status;
+
+    Budget() {
+        maxSteps = Long.MAX_VALUE;
+    }
+
+    void setMaxSteps(long maxSteps) {
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Returns how many instructions the current run may still execute
+     *
+     * @param steps The number of instructions executed so far
+     * @return The number of instructions; may be negative
+     */
+    long getRemaining(long steps) {
+        return maxSteps - (steps - base);
+    }
+
+    void setTimeLimit(long nanos) {
+        this.timeLimit = nanos;
+    }
+
+    long getTimeLimit() {
+        return timeLimit;
+    }
+
+    /**
+     * Sets who receives the progress of the program
+     *
+     * @param sampler The receiver or <code>null</code>
+     * @param nanos The time between two samples
+     */
+    void setSampler(Sampler sampler, long nanos) {
+        this.sampler = sampler;
+        this.sampleInterval = nanos;
+    }
+
+    /**
+     * Starts a run: the run time and the number of instructions are
+     * measured from now on
+     *
+     * @param steps The number of instructions executed before
+     */
+    void start(long steps) {
+        base = steps;
+        long now = System.nanoTime();
+        deadline = now + timeLimit;
+        nextSample = now + sampleInterval;
+        clocked = timeLimit > 0 || sampler != null;
+        countdown = CLOCK_INTERVAL;
+        status = stopped ? ExitStatus.STOPPED : null;
+    }
+
+    /**
+     * Requests the program to stop
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Clears a stop request
+     */
+    void reset() {
+        stopped = false;
+    }
+
+    /**
+     * Tests if the program has to end
+     *
+     * @param steps The number of instructions executed so far
+     * @param pc The address of the next instruction
+     * @return <code>true</code> if the program has to end
+     */
+    boolean check(long steps, int pc) {
+        if (stopped) {
+            status = ExitStatus.STOPPED;
+            return true;
+        }
+        if (steps - base >= maxSteps) {
+            status = ExitStatus.BUDGET_EXHAUSTED;
+            return true;
+        }
+        if (clocked && --countdown <= 0) {
+            countdown = CLOCK_INTERVAL;
+            long now = System.nanoTime();
+            if (timeLimit > 0 && now - deadline >= 0) {
+                status = ExitStatus.BUDGET_EXHAUSTED;
+                return true;
+            }
+            if (sampler != null && now - nextSample >= 0) {
+                nextSample = now + sampleInterval;
+                sampler.sample(steps, pc);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns why the program ended
+     *
+     * @return The reason; {@link ExitStatus#FINISHED} if no check failed
+     */
+    ExitStatus getStatus() {
+        return status == null ? ExitStatus.FINISHED : status;
+    }
+
+    /**
+     * Receives the progress of a program
+     */
+    interface Sampler {
+
+        /**
+         * Called by the thread running the program
+         *
+         * @param steps The number of instructions executed so far
+         * @param pc The address of the next instruction
+         */
+        void sample(long steps, int pc);
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package de.theia.vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * A source code read from a file or channel. The characters are the bytes of
+ * the buffer (ISO-8859-1), which is enough for the ASCII sources of the
+ * languages. Files are memory-mapped, so they aren't copied into the heap.
+ *
+ * @author maximilianstrauch
+ */
+final class ByteSource implements CharSequence {
+
+    /**
+     * The bytes between position and limit
+     */
+    private final ByteBuffer bytes;
+
+    private ByteSource(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Maps a file into memory
+     *
+     * @param file The file
+     * @return The source
+     * @throws IOException If the file can't be read
+     */
+    static ByteSource map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            return map(channel);
+        }
+    }
+
+    /**
+     * Reads the rest of a channel. File channels are mapped into memory,
+     * other channels are read into a buffer
+     *
+     * @param channel The channel; isn't closed
+     * @return The source
+     * @throws IOException If the channel can't be read
+     */
+    static ByteSource read(ReadableByteChannel channel) throws IOException {
+        if (channel instanceof FileChannel) {
+            return map((FileChannel) channel);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        while (channel.read(buffer) >= 0) {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() == Integer.MAX_VALUE) {
+                    throw new IOException("Source too large");
+                }
+                ByteBuffer larger = ByteBuffer.allocate((int) Math.min(
+                        2L * buffer.capacity(), Integer.MAX_VALUE));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+        buffer.flip();
+        return new ByteSource(buffer);
+    }
+
+    /**
+     * Maps the rest of a file channel into memory
+     *
+     * @param channel The channel
+     * @return The source
+     * @throws IOException If the file can't be read or has more than
+     * {@link Integer#MAX_VALUE} bytes
+     */
+    private static ByteSource map(FileChannel channel) throws IOException {
+        long position = channel.position(), length = channel.size() - position;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Source too large");
+        }
+        return new ByteSource(channel.map(FileChannel.MapMode.READ_ONLY,
+                position, Math.max(length, 0)));
+    }
+
+    /**
+     * Feeds the bytes of the source to a digest without copying them. For
+     * an ASCII or UTF-8 file this is the digest of the decoded text
+     *
+     * @param digest The digest
+     */
+    void update(MessageDigest digest) {
+        digest.update(bytes.duplicate());
+    }
+
+    @Override
+    public int length() {
+        return bytes.remaining();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(bytes.position() + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException(start + ", " + end);
+        }
+        ByteBuffer b = bytes.duplicate();
+        b.position(bytes.position() + start);
+        b.limit(bytes.position() + end);
+        return new ByteSource(b.slice());
+    }
+
+    @Override
+    public String toString() {
+        byte[] b = new byte[length()];
+        bytes.duplicate().get(b);
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+
+}
@@ -0,0 +1,404 @@
+package de.theia.vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compiled program stored in a file, so large programs don't have to be
+ * compiled again for every run.
+ *
+ * The file consists of big-endian ints:
+ * <pre>
+ *   magic, version, language, SHA-256 hash of the source (8 ints),
+ *   code length, table count,
+ *   code (code length ints),
+ *   for each table: tag, length, data (length ints)
+ * </pre>
+ * The table section is reserved for debug tables, which are identified by
+ * their tag; no tags are defined yet, so the runner writes no tables and a
+ * loader ignores the tables it doesn't know.
+ *
+ * The code is verified when a file is loaded: every instruction must be
+ * known and complete and every jump must point to the start of an
+ * instruction or the end of the code, so a corrupt file can't crash the
+ * {@link VM}.
+ *
+ * A loaded file is memory-mapped and its code and tables are views of the
+ * mapping; only {@link #getBytecode()} copies the code for the {@link VM}.
+ *
+ * @author maximilianstrauch
+ */
+public final class BytecodeFile {
+
+    /**
+     * The first int of every file ("THEA")
+     */
+    public static final int MAGIC = 0x54484541;
+
+    /**
+     * The current version of the format
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size of the header in bytes
+     */
+    private static final int HEADER = 4 * (3 + 8 + 2);
+
+    /**
+     * Size of the source hash in bytes
+     */
+    private static final int HASH = 32;
+
+    /**
+     * The language of the source
+     */
+    private final Language language;
+
+    /**
+     * The SHA-256 hash of the source
+     */
+    private final byte[] sourceHash;
+
+    /**
+     * The bytecode
+     */
+    private final IntBuffer code;
+
+    /**
+     * The debug tables by their tag
+     */
+    private final Map<Integer, IntBuffer> tables;
+
+    private BytecodeFile(Language language, byte[] sourceHash,
+            IntBuffer code) {
+        this.language = language;
+        this.sourceHash = sourceHash;
+        this.code = code;
+        this.tables = new LinkedHashMap<>();
+    }
+
+    /**
+     * Creates a new file for a compiled program
+     *
+     * @param bytecode The bytecode; isn't copied
+     * @param language The language of the source
+     * @param source The source code
+     */
+    public BytecodeFile(int[] bytecode, Language language,
+            CharSequence source) {
+        this(language, ProgramCache.hash(source), IntBuffer.wrap(bytecode));
+    }
+
+    /**
+     * Loads a file. The file is memory-mapped and must not be modified
+     * while the program is used
+     *
+     * @param file The file
+     * @return The program
+     * @throws IOException If the file can't be read or isn't a valid
+     * bytecode file
+     */
+    public static BytecodeFile load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            return load(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        }
+    }
+
+    /**
+     * Reads a program from a buffer. The code and tables are views of the
+     * buffer
+     *
+     * @param buffer The bytes between position and limit
+     * @return The program
+     * @throws IOException If the buffer doesn't contain a valid bytecode file
+     */
+    public static BytecodeFile load(ByteBuffer buffer) throws IOException {
+        IntBuffer ints = buffer.slice().asIntBuffer();
+        if (ints.remaining() < HEADER / 4 || ints.get() != MAGIC) {
+            throw new IOException("Not a bytecode file");
+        }
+
+        int version = ints.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported bytecode version " + version);
+        }
+
+        int lang = ints.get();
+        if (lang < 0 || lang >= Language.values().length) {
+            throw new IOException("Unknown language " + lang);
+        }
+
+        byte[] hash = new byte[HASH];
+        ByteBuffer h = buffer.duplicate();
+        h.position(buffer.position() + 12);
+        h.get(hash);
+        ints.position(ints.position() + HASH / 4);
+
+        int length = ints.get(), count = ints.get();
+        BytecodeFile f = new BytecodeFile(Language.values()[lang], hash,
+                verify(view(ints, length)));
+        for (int i = 0; i < count; i++) {
+            if (ints.remaining() < 2) {
+                throw new IOException("Truncated bytecode file");
+            }
+            int tag = ints.get();
+            f.tables.put(tag, view(ints, ints.get()));
+        }
+        return f;
+    }
+
+    /**
+     * Checks that the code can be executed safely
+     *
+     * @param code The code
+     * @return The code
+     * @throws IOException If an instruction is unknown or truncated or a
+     * jump target is invalid
+     */
+    private static IntBuffer verify(IntBuffer code) throws IOException {
+        int n = code.limit();
+
+        // Find the start of all instructions
+        boolean[] starts = new boolean[n + 1];
+        for (int pc = 0; pc < n; ) {
+            starts[pc] = true;
+            int len = Decoder.length(code.get(pc));
+            if (len < 0 || len > n - pc) {
+                throw new IOException("Corrupt bytecode");
+            }
+            pc += len;
+        }
+        starts[n] = true;
+
+        for (int pc = 0; pc < n; pc += Decoder.length(code.get(pc))) {
+            switch (code.get(pc)) {
+                case 0x13: // bz <addr>
+                case 0x21: // goto <addr>
+                    target(code.get(pc + 1), starts);
+                    break;
+                case 0x14: // loop <a> <addr>
+                    target(code.get(pc + 2), starts);
+                    break;
+                case 0x15: // next <body> <addr>
+                    target(code.get(pc + 1), starts);
+                    target(code.get(pc + 2), starts);
+                    break;
+                case 0x42: // ifneq <a> <b> <addr>
+                case 0x43: // ifgt <a> <b> <addr>
+                case 0x44: // ifeq <a> <b> <addr>
+                case 0x45: // dbnz <reg> <imm> <addr>
+                    target(code.get(pc + 3), starts);
+                    break;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Checks a jump target
+     *
+     * @param addr The jump target from the bytecode
+     * @param starts The instruction start markers including the end
+     * @throws IOException If the target isn't the start of an instruction
+     */
+    private static void target(int addr, boolean[] starts)
+            throws IOException {
+        addr &= 0x7fffffff;
+        if (addr >= starts.length || !starts[addr]) {
+            throw new IOException("Corrupt bytecode");
+        }
+    }
+
+    /**
+     * Cuts a read-only view off an int buffer
+     *
+     * @param ints The buffer; its position is moved behind the view
+     * @param length The number of ints
+     * @return The view
+     * @throws IOException If the buffer is too short
+     */
+    private static IntBuffer view(IntBuffer ints, int length)
+            throws IOException {
+        if (length < 0 || length > ints.remaining()) {
+            throw new IOException("Truncated bytecode file");
+        }
+        IntBuffer v = ints.slice();
+        v.limit(length);
+        ints.position(ints.position() + length);
+        return v.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the program to a file
+     *
+     * @param file The file; is replaced if it exists
+     * @throws IOException If the file can't be written
+     */
+    public void write(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel);
+        }
+    }
+
+    /**
+     * Writes the program to a channel
+     *
+     * @param channel The channel; isn't closed
+     * @throws IOException If the channel can't be written
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(language.ordinal());
+        buf.put(sourceHash);
+        buf.putInt(code.limit()).putInt(tables.size());
+        write(channel, buf, code);
+        for (Map.Entry<Integer, IntBuffer> e : tables.entrySet()) {
+            if (buf.remaining() < 8) {
+                flush(channel, buf);
+            }
+            buf.putInt(e.getKey()).putInt(e.getValue().limit());
+            write(channel, buf, e.getValue());
+        }
+        flush(channel, buf);
+    }
+
+    /**
+     * Writes ints through a buffer
+     *
+     * @param channel The channel
+     * @param buf The buffer
+     * @param ints The ints
+     * @throws IOException If the channel can't be written
+     */
+    private static void write(WritableByteChannel channel, ByteBuffer buf,
+            IntBuffer ints) throws IOException {
+        IntBuffer src = ints.duplicate();
+        src.rewind();
+        while (src.hasRemaining()) {
+            if (buf.remaining() < 4) {
+                flush(channel, buf);
+            }
+            IntBuffer dst = buf.asIntBuffer();
+            int n = Math.min(dst.remaining(), src.remaining());
+            IntBuffer part = src.slice();
+            part.limit(n);
+            dst.put(part);
+            src.position(src.position() + n);
+            buf.position(buf.position() + 4 * n);
+        }
+    }
+
+    /**
+     * Writes and clears a buffer
+     *
+     * @param channel The channel
+     * @param buf The buffer
+     * @throws IOException If the channel can't be written
+     */
+    private static void flush(WritableByteChannel channel, ByteBuffer buf)
+            throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Adds a debug table
+     *
+     * @param tag Identifies the table; replaces a table with the same tag
+     * @param data The data; isn't copied
+     */
+    public void addTable(int tag, int[] data) {
+        tables.put(tag, IntBuffer.wrap(data));
+    }
+
+    /**
+     * Returns a debug table
+     *
+     * @param tag The tag of the table
+     * @return A read-only view of the table or <code>null</code> if there
+     * is no table with this tag
+     */
+    public IntBuffer getTable(int tag) {
+        IntBuffer t = tables.get(tag);
+        return t == null ? null : t.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the tags of the debug tables
+     *
+     * @return The tags in file order
+     */
+    public int[] getTableTags() {
+        int[] tags = new int[tables.size()];
+        int i = 0;
+        for (Integer tag : tables.keySet()) {
+            tags[i++] = tag;
+        }
+        return tags;
+    }
+
+    /**
+     * Returns the language of the source
+     *
+     * @return The language
+     */
+    public Language getLanguage() {
+        return language;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the source
+     *
+     * @return A copy of the hash
+     */
+    public byte[] getSourceHash() {
+        return sourceHash.clone();
+    }
+
+    /**
+     * Tests if the program was compiled from a source
+     *
+     * @param source The source code
+     * @return <code>true</code> if the source hash matches
+     */
+    public boolean isCompiledFrom(CharSequence source) {
+        return Arrays.equals(sourceHash, ProgramCache.hash(source));
+    }
+
+    /**
+     * Returns the bytecode without copying it
+     *
+     * @return A read-only view of the bytecode
+     */
+    public IntBuffer getCode() {
+        return code.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the bytecode as array to run it in the {@link VM}
+     *
+     * @return A copy of the bytecode
+     */
+    public int[] getBytecode() {
+        int[] bytecode = new int[code.limit()];
+        code.duplicate().get(bytecode);
+        return bytecode;
+    }
+
+}
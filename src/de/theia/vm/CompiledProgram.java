@@ -0,0 +1,176 @@
+package de.theia.vm;
+
+/**
+ * Base class of the JVM classes generated by the {@link JitCompiler}. A
+ * compiled program keeps every register it uses in a local variable; the
+ * register values are passed in and out as an array. The program gets a
+ * credit of instructions it may execute and counts it down per basic block.
+ * Only if it is used up a backward jump calls {@link #checkpoint(int)} to
+ * account the instructions, test the budget and get a new credit.
+ *
+ * @author maximilianstrauch
+ */
+public abstract class CompiledProgram {
+
+    /**
+     * Set to stop the program. Tested on every backward jump
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Limits the execution or <code>null</code> for no limit
+     */
+    private Budget budget;
+
+    /**
+     * Number of instructions executed by the VM up to the last checkpoint
+     */
+    private long steps;
+
+    /**
+     * The credit given at the last checkpoint
+     */
+    private int granted;
+
+    /**
+     * Maximum credit, i.e. the number of instructions between two tests of
+     * the stop flag
+     */
+    private static final int CREDIT = 1 << 12;
+
+    /**
+     * The register numbers for the indices of the value array
+     */
+    private int[] registers;
+
+    protected CompiledProgram() {
+        // Instantiated by the JitCompiler only
+    }
+
+    /**
+     * Sets the register numbers for the indices of the value array
+     *
+     * @param registers The register numbers
+     */
+    final void setRegisters(int[] registers) {
+        this.registers = registers;
+    }
+
+    /**
+     * Creates another instance of this program, e.g. to run it on another
+     * thread
+     *
+     * @return The new instance or <code>null</code> if it can't be created
+     */
+    final CompiledProgram copy() {
+        try {
+            CompiledProgram c = getClass().getConstructor().newInstance();
+            c.registers = registers;
+            return c;
+        } catch (ReflectiveOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the register numbers used by this program. Index i holds the
+     * number of the register which is passed in <code>values[i]</code> to
+     * {@link #run(int[])}
+     *
+     * @return The register numbers
+     */
+    public final int[] getRegisters() {
+        return registers.clone();
+    }
+
+    /**
+     * Runs the program
+     *
+     * @param values The register values in the order of
+     * {@link #getRegisters()}. The array holds the final values afterwards
+     */
+    public abstract void run(int[] values);
+
+    /**
+     * Runs the program on a register file. All registers used by the
+     * program are set afterwards
+     *
+     * @param register The register file
+     * @param budget Limits the execution
+     * @param start The number of instructions executed before
+     * @return The number of executed instructions
+     */
+    final long execute(Register register, Budget budget, long start) {
+        int[] values = new int[registers.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = register.peek(registers[i]);
+        }
+        this.budget = budget;
+        this.steps = start;
+        this.stopped = false;
+        try {
+            run(values);
+        } finally {
+            this.budget = null;
+        }
+        for (int i = 0; i < values.length; i++) {
+            register.setValue(registers[i], values[i]);
+        }
+        return steps - start;
+    }
+
+    /**
+     * Called by the program at its start
+     *
+     * @return The number of instructions the program may execute before
+     * the next checkpoint
+     */
+    protected final int credit() {
+        Budget b = budget;
+        long left = b == null ? CREDIT : Math.min(CREDIT, b.getRemaining(steps));
+        granted = (int) Math.max(left, 0);
+        return granted;
+    }
+
+    /**
+     * Called by the program on a backward jump if its credit is used up
+     *
+     * @param credit The remaining credit
+     * @return The new credit or <code>-1</code> if the program has to end
+     */
+    protected final int checkpoint(int credit) {
+        steps += granted - credit;
+        Budget b = budget;
+        if (stopped || b != null && b.check(steps, -1)) {
+            granted = -1;
+            return -1;
+        }
+        return credit();
+    }
+
+    /**
+     * Called by the program at its end
+     *
+     * @param credit The remaining credit
+     */
+    protected final void finish(int credit) {
+        steps += granted - credit;
+    }
+
+    /**
+     * Returns the number of instructions executed by the last run
+     *
+     * @return The number of instructions
+     */
+    public final long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Stops the program at the next backward jump
+     */
+    public final void stop() {
+        stopped = true;
+    }
+
+}
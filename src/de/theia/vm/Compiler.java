@@ -1,10 +1,10 @@
 package de.theia.vm;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import de.theia.vm.VM;
 import static de.theia.vm.Token.*;
 
@@ -36,14 +36,37 @@ public class Compiler {
     private int start, end;
     
     /**
-     * Maps for GOTO programs to adjust the GOTO addresses after the compilations
+     * Maps the line numbers of GOTO programs to their addresses
      */
-    private final HashMap<Integer, Integer> labelMap, relocateMap;
+    private final IntIntMap labelMap;
+    
+    /**
+     * Jump addresses of GOTO programs to adjust after the compilation. Four
+     * entries per jump: the position of the address, the line number to
+     * jump to and the start and end of the line number in the source
+     */
+    private final IntList relocations;
     
     /**
      * Program instructions list
      */
-    private final List<Integer> program;
+    private final IntList program;
+    
+    /**
+     * Whether the {@link Optimizer} fuses the generated instructions
+     */
+    private boolean fusion;
+    
+    /**
+     * Whether loops are replaced by closed-form instructions if possible
+     */
+    private boolean summarization;
+    
+    /**
+     * Time spent by the last compilation recognizing tokens, parsing and 
+     * resolving and optimizing jump addresses
+     */
+    private long lexNanos, parseNanos, relocateNanos;
     
     /**
      * Creates a new compiler to compile a LOOP, WHILE or GOTO program to
@@ -55,9 +78,64 @@ public class Compiler {
     public Compiler(Lexer lexer, Language language) {
         this.lexer = lexer;
         this.language = language;
-        labelMap = new HashMap<>();
-        relocateMap = new HashMap<>();
-        program = new ArrayList<>();
+        labelMap = new IntIntMap(16);
+        relocations = new IntList(16);
+        program = new IntList(256);
+        fusion = true;
+        summarization = true;
+    }
+    
+    /**
+     * Enables or disables the fusion of instructions by the 
+     * {@link Optimizer}. Without fusion the bytecode maps 1:1 to the
+     * source which is easier to read. Fusion is enabled by default
+     * 
+     * @param fusion <code>true</code> to fuse instructions
+     */
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+    
+    /**
+     * Enables or disables the replacement of loops whose effect can be 
+     * computed in constant time (e.g. <code>loop x1 do x2 := x2 + 3 end</code>)
+     * by closed-form instructions. Enabled by default
+     * 
+     * @param summarization <code>true</code> to replace loops
+     */
+    public void setSummarization(boolean summarization) {
+        this.summarization = summarization;
+    }
+    
+    /**
+     * Returns the time the last compilation spent recognizing tokens. For 
+     * a {@link Lexer} reading already recognized tokens this is the time
+     * they took to recognize
+     * 
+     * @return The time in nanoseconds
+     */
+    public long getLexNanos() {
+        return lexNanos;
+    }
+    
+    /**
+     * Returns the time the last compilation spent parsing and generating 
+     * the bytecode, without recognizing tokens
+     * 
+     * @return The time in nanoseconds
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+    
+    /**
+     * Returns the time the last compilation spent resolving the jump 
+     * addresses of GOTO programs and fusing instructions
+     * 
+     * @return The time in nanoseconds
+     */
+    public long getRelocateNanos() {
+        return relocateNanos;
     }
     
     /**
@@ -65,12 +143,12 @@ public class Compiler {
      * a {@link RecognitionException} is thrown
      * 
      * @param token The token to match
-     * @return The lexeme for the current token
+     * @return The value of the current token (see {@link Lexer#getValue()})
      */
-    private String match(Token token) {
+    private int match(Token token) {
         if (test(token)) {
             lookahead = null;
-            return lexer.getLexeme();
+            return lexer.getValue();
         } else {
             throw new RecognitionException(
                     "Expected '" + token + "' but found '" + lookahead + "'", 
@@ -88,9 +166,7 @@ public class Compiler {
      */
     private boolean test(Token token) {
         if (lookahead == null) {
-            start = lexer.getAbs() - 1;
-            lookahead = lexer.next();
-            end = lexer.getAbs() - 1;
+            advance();
         }
         return lookahead == token;
     }
@@ -104,7 +180,7 @@ public class Compiler {
      */
     private boolean test(Token...tokens) {
         if (lookahead == null) {
-            lookahead = lexer.next();
+            advance();
         }
         for (Token token : tokens) {
             if (lookahead == token) {
@@ -129,14 +205,24 @@ public class Compiler {
 //        return false;
 //    }
     
+    /**
+     * Reads the next token and remembers its position
+     */
+    private void advance() {
+        lookahead = lexer.next();
+        start = lexer.getStart();
+        end = start + lexer.getLength();
+    }
+    
     /**
      * Skips the current Token
      * 
-     * @return The lexeme for the skipped token
+     * @return The skipped token
      */
-    private String skip() {
+    private Token skip() {
+        Token t = lookahead;
         lookahead = null;
-        return lexer.getLexeme();
+        return t;
     }
     
     /**
@@ -144,8 +230,10 @@ public class Compiler {
      * using the {@link VM} or pretty printed using {@lonk PrettyPrint}
      * 
      * @return The compiled bytecode
+     * @throws CancellationException If the compiling thread is interrupted
      */
     public int[] compile() {
+        long scanned = lexer.getScanNanos(), time = System.nanoTime(), parsed;
         
         if (language == Language.GOTO) {
             // Match GOTO statements. A GOTO statement consists of:
@@ -153,8 +241,6 @@ public class Compiler {
             // where NUM is the line number which is used in the GOTO-IF 
             // statements. Therefore the line numbers must be cached to 
             // calculate the program address to jump to
-            Set<Integer> usedLineNumbers = new HashSet<>();
-            
             while (true) {
                 if (!test(NUM)) {
                     throw new RecognitionException(
@@ -163,15 +249,13 @@ public class Compiler {
                     );
                 }
                 
-                int num = Integer.parseInt(match(NUM));
-                if (usedLineNumbers.contains(num)) {
+                int num = match(NUM);
+                if (labelMap.containsKey(num)) {
                     throw new RecognitionException(
                             "Line number '" + num + "' already used",
                             start, end
                     );
                 }
-                usedLineNumbers.add(num);
-                
                 labelMap.put(num, program.size());
                 match(COLON);
                 
@@ -195,67 +279,54 @@ public class Compiler {
                     );
                 }
             }
+            parsed = System.nanoTime();
             
             // Fill out all jump addresses which were not known during
             // compilation
-            for (Integer pos : relocateMap.keySet()) {
-                int addr = labelMap.get(relocateMap.get(pos));
-                program.set(pos, addr);
+            for (int i = 0; i < relocations.size(); i += 4) {
+                int addr = labelMap.get(relocations.get(i + 1), -1);
+                if (addr < 0) {
+                    throw new RecognitionException(
+                            "Unknown line number '" + relocations.get(i + 1) + "'",
+                            relocations.get(i + 2), relocations.get(i + 3)
+                    );
+                }
+                program.set(relocations.get(i), addr);
             }
         } else {
             // Consume all statements of LOOP and WHILE
             consumeStmt();
+            parsed = System.nanoTime();
         }
         
         // Convert to an array
-        int[] bytecode = new int[program.size()];
-        for (int i = 0; i < bytecode.length; i++) {
-            bytecode[i] = program.get(i);
+        int[] bytecode = program.toArray();
+        
+        if (fusion) {
+            bytecode = Optimizer.fuse(bytecode);
         }
+        
+        lexNanos = lexer.getScanNanos();
+        parseNanos = parsed - time - (lexNanos - scanned);
+        relocateNanos = System.nanoTime() - parsed;
+        Metrics.get().compiled(lexNanos, parseNanos, relocateNanos);
         return bytecode;
     }
     
     /**
-     * Consumes a statement
+     * Consumes a statement or a sequence of statements. The sequence
+     * "P ; P" is consumed in a loop, so the recursion depth only depends on
+     * the nesting of LOOP, WHILE and IF statements
      */
     private void consumeStmt() {
-        // In most cases this is triggered if a SEMICOLON is set at the end
-        // of the last statement. But the sequence is defined as "P ; P" therefore
-        // no ending SEMICOLON
-        if (test(EOF) || test(END)) {
-            throw new RecognitionException("No statement provided", start, end);
-        }
-        
-        // Find statements. These are all alternatives to each other
-        if (test(VAR)) {
-            consumeAssign();
-        } else if (test(LOOP)) {
-            if (language != Language.LOOP) {
-                throw new RecognitionException(
-                        "Illegal statement loop in lang " + language,
-                        start, end
-                );
-            }
-            consumeLoop();
-        } else if (test(WHILE)) {
-            if (language != Language.WHILE) {
-                throw new RecognitionException(
-                        "Illegal statement while in lang " + language, 
-                        start, end
-                );
-            }
-            consumeWhile();
-            
-        } else if (test(IF)) {
-            consumeIf();
-        } 
+        consumeSingleStmt();
         
         // Issue #7: this is the sequence statement which only should active
         // for LOOP/WHILE programs since GOTO programs have their own line
         // termination semicolon match statement in compile()
-        if (language != Language.GOTO && test(SEMICOLON)) {
+        while (language != Language.GOTO && test(SEMICOLON)) {
             match(SEMICOLON);
-            consumeStmt();
+            consumeSingleStmt();
         }
         
         // Issue #8:
@@ -286,6 +357,47 @@ public class Compiler {
         );
     }
     
+    /**
+     * Consumes a single statement without a following sequence
+     */
+    private void consumeSingleStmt() {
+        // A compile in the background may be superseded by a newer source
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Compile interrupted");
+        }
+        
+        // In most cases this is triggered if a SEMICOLON is set at the end
+        // of the last statement. But the sequence is defined as "P ; P" therefore
+        // no ending SEMICOLON
+        if (test(EOF) || test(END)) {
+            throw new RecognitionException("No statement provided", start, end);
+        }
+        
+        // Find statements. These are all alternatives to each other
+        if (test(VAR)) {
+            consumeAssign();
+        } else if (test(LOOP)) {
+            if (language != Language.LOOP) {
+                throw new RecognitionException(
+                        "Illegal statement loop in lang " + language,
+                        start, end
+                );
+            }
+            consumeLoop();
+        } else if (test(WHILE)) {
+            if (language != Language.WHILE) {
+                throw new RecognitionException(
+                        "Illegal statement while in lang " + language, 
+                        start, end
+                );
+            }
+            consumeWhile();
+            
+        } else if (test(IF)) {
+            consumeIf();
+        }
+    }
+    
     /**
      * Consume an assign statement
      */
@@ -302,11 +414,11 @@ public class Compiler {
         // If an operator follows this is a binary expression
         if (test(PLUS, MINUS, MULT)) {
             // Get the operator
-            String op = skip();
+            Token op = skip();
             switch (op) {
-                case "+": func = 0; break;
-                case "-": func = 1; break;
-                case "*": func = 2; break;
+                case PLUS: func = 0; break;
+                case MINUS: func = 1; break;
+                case MULT: func = 2; break;
                 default:
                     throw new RecognitionException("Unkown operator '" + op + "'");
             }
@@ -334,9 +446,10 @@ public class Compiler {
      */
     private void consumeLoop() {
         match(LOOP);
-        String var = match(VAR);
+        int var = match(VAR);
 
         // Push the loop counter onto the stack
+        int start = program.size();
         program.add(0x10);
         program.add(asVar(var));
 
@@ -353,6 +466,11 @@ public class Compiler {
         consumeStmt();
         match(END);
         
+        // Try to replace the entire loop by closed-form instructions
+        if (summarization && summarizeLoop(start, asVar(var))) {
+            return;
+        }
+        
         // After body of the loop:
         // Decrement the value from stack (loop count)
         program.add(0x12);
@@ -368,6 +486,103 @@ public class Compiler {
         program.add(0x11);
     }   
     
+    /**
+     * Replaces a loop by closed-form instructions if all statements of its
+     * body are affine updates of distinct registers which only depend on
+     * registers not changed by the loop:
+     * 
+     * <ul>
+     * <li><code>d := d + k</code> is repeated n times by <code>addn</code></li>
+     * <li><code>d := d - k</code> is repeated n times by <code>subn</code></li>
+     * <li><code>d := k</code> is executed if n != 0 by <code>setn</code></li>
+     * </ul>
+     * 
+     * These instructions take up to two counts, so the effect of a loop
+     * nested into another one can be computed too.
+     * 
+     * @param start The address of the first instruction of the loop
+     * @param counter The register holding the loop count
+     * @return <code>true</code> if the loop was replaced
+     */
+    private boolean summarizeLoop(int start, int counter) {
+        final int one = asNum(1);
+        List<int[]> updates = new ArrayList<>();
+        Set<Integer> written = new HashSet<>();
+        
+        // Collect the updates of the body: {opcode, d, k, n1, n2}
+        int pc = start + 4;
+        while (pc < program.size()) {
+            int op = program.get(pc);
+            int[] u;
+            switch (op) {
+                case 0x2d: // mov <k> <d>
+                    u = new int[] {0x32, program.get(pc + 2), 
+                        program.get(pc + 1), one, one};
+                    pc += 3;
+                    break;
+                    
+                case 0x2a: // add <a> <b> <d>
+                case 0x2b: // sub <a> <b> <d>
+                    int a = program.get(pc + 1), b = program.get(pc + 2);
+                    int d = program.get(pc + 3);
+                    if (a == d) {
+                        u = new int[] {op == 0x2a ? 0x30 : 0x31, d, b, one, one};
+                    } else if (b == d && op == 0x2a) {
+                        u = new int[] {0x30, d, a, one, one};
+                    } else {
+                        return false;
+                    }
+                    pc += 4;
+                    break;
+                    
+                case 0x30: // addn <d> <k> <n1> <n2>
+                case 0x31: // subn <d> <k> <n1> <n2>
+                case 0x32: // setn <d> <k> <n1> <n2>
+                    u = new int[5];
+                    for (int i = 0; i < 5; i++) {
+                        u[i] = program.get(pc + i);
+                    }
+                    pc += 5;
+                    break;
+                    
+                default:
+                    return false;
+            }
+            
+            // Put the loop count into a free count slot
+            if (u[3] == one) {
+                u[3] = counter;
+            } else if (u[4] == one) {
+                u[4] = counter;
+            } else {
+                return false;
+            }
+            
+            if (!written.add(u[1])) {
+                return false; // Register updated twice
+            }
+            updates.add(u);
+        }
+        
+        // All operands except the updated register must be loop invariant
+        for (int[] u : updates) {
+            for (int i = 2; i < 5; i++) {
+                if (written.contains(u[i])) {
+                    return false;
+                }
+            }
+        }
+        
+        // Replace the loop
+        program.truncate(start);
+        for (int[] u : updates) {
+            for (int x : u) {
+                program.add(x);
+            }
+        }
+        return true;
+    }
+    
     /**
      * Consumes an expression argument (VAR or NUM) and returns it
      * 
@@ -435,7 +650,11 @@ public class Compiler {
             program.add(0x44);
             program.add(arg1);
             program.add(arg2);
-            relocateMap.put(program.size(), Integer.parseInt(match(NUM)));
+            int line = match(NUM);
+            relocations.add(program.size());
+            relocations.add(line);
+            relocations.add(start);
+            relocations.add(end);
             program.add(-1);
             return;
         }
@@ -477,16 +696,16 @@ public class Compiler {
         match(WHILE);
         
         // A while condition must be a not equal zero test
-        String var = match(VAR);
+        int var = match(VAR);
         
         if (!test(NEQ)) {
             throw new RecognitionException("While condition: operator must be 'not equal' (!=)");
         }
         
         match(NEQ);
-        String num = match(NUM);
+        int num = match(NUM);
         
-        if (!"0".equals(num)) {
+        if (num != 0) {
             throw new RecognitionException("While condition: must test on not equal zero");
         }
         
@@ -515,27 +734,25 @@ public class Compiler {
     }
     
     /**
-     * Converts a {@link String} to an {@link Integer} with the information
+     * Converts a register index to an {@link Integer} with the information
      * encoded that it is a variable
      * 
-     * @param var The numeric variable/register identifier
+     * @param v The numeric variable/register identifier
      * @return The encoded value
      */
-    private static int asVar(String var) {
-        int v = Integer.parseInt(var.substring(1));
+    private static int asVar(int v) {
         int arg1 = 0x80000000 | (0x7fffffff & v);
         return arg1;
     }
     
     /**
-     * Converts a {@link String} to an {@link Integer} with the information
+     * Converts a number to an {@link Integer} with the information
      * encoded that it is a number (immediate value)
      * 
-     * @param num The number
+     * @param v The number
      * @return The encoded value
      */
-    private static int asNum(String num) {
-        int v = Integer.parseInt(num);
+    private static int asNum(int v) {
         int arg1 = 0x7fffffff & v;
         return arg1;
     }
@@ -0,0 +1,260 @@
+package de.theia.vm;
+
+/**
+ * Translates the bytecode generated by the {@link Compiler} into an internal
+ * form which can be executed faster by the {@link VM}. Every instruction is
+ * replaced by a variant specialized on the kind of its operands (register
+ * or immediate), operands are stored untagged and jump targets are checked
+ * and unmasked. The decoded program has the same layout as the bytecode, so
+ * all addresses stay valid.
+ *
+ * @author maximilianstrauch
+ */
+public class Decoder {
+
+    /*
+     * Internal opcodes. Instructions with two value operands have four
+     * variants in the order register-register, register-immediate,
+     * immediate-register and immediate-immediate
+     */
+
+    static final int ADD_RR = 0, ADD_RI = 1, ADD_IR = 2, ADD_II = 3;
+    static final int SUB_RR = 4, SUB_RI = 5, SUB_IR = 6, SUB_II = 7;
+    static final int MUL_RR = 8, MUL_RI = 9, MUL_IR = 10, MUL_II = 11;
+    static final int MOV_R = 12, MOV_I = 13;
+    static final int PUSH_R = 14, PUSH_I = 15;
+    static final int POP = 16, DEC = 17, BZ = 18, GOTO = 19;
+    static final int IFNEQ_RR = 20, IFNEQ_RI = 21, IFNEQ_IR = 22, IFNEQ_II = 23;
+    static final int IFGT_RR = 24, IFGT_RI = 25, IFGT_IR = 26, IFGT_II = 27;
+    static final int IFEQ_RR = 28, IFEQ_RI = 29, IFEQ_IR = 30, IFEQ_II = 31;
+    static final int NOP = 32;
+
+    /**
+     * Marks an unknown or truncated instruction
+     */
+    static final int ILLEGAL = 33;
+
+    /*
+     * Fused instructions generated by the Optimizer
+     */
+
+    static final int LOOP_R = 34, LOOP_I = 35, NEXT = 36;
+    static final int INC = 37, DCR = 38, DBNZ = 39;
+
+    /*
+     * Loop summaries generated by the Compiler. Only the first operand is
+     * untagged, all others stay tagged
+     */
+
+    static final int ADDN = 40, SUBN = 41, SETN = 42;
+
+    private Decoder() {
+        // Static class
+    }
+
+    /**
+     * Tests if an operand is a register
+     *
+     * @param arg The tagged operand
+     * @return <code>true</code> for a register, <code>false</code> for an
+     * immediate value
+     */
+    private static boolean isReg(int arg) {
+        return (arg & 0x80000000) != 0;
+    }
+
+    /**
+     * Returns the length of an instruction
+     *
+     * @param opcode The opcode of the instruction
+     * @return The number of words of the instruction including the opcode
+     * or <code>-1</code> if the opcode is unknown
+     */
+    static int length(int opcode) {
+        switch (opcode) {
+            case 0x30: case 0x31: case 0x32: // addn, subn, setn
+                return 5;
+            case 0x2a: case 0x2b: case 0x2c: // add, sub, mul
+            case 0x42: case 0x43: case 0x44: // ifneq, ifgt, ifeq
+            case 0x45: // dbnz
+                return 4;
+            case 0x2d: // mov
+            case 0x14: case 0x15: // loop, next
+            case 0x2e: case 0x2f: // inc, dcr
+                return 3;
+            case 0x10: case 0x13: case 0x21: // push, bz, goto
+                return 2;
+            case 0x11: case 0x12: case 0x99: // pop, dec, nop
+                return 1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Decodes bytecode
+     *
+     * @param bytecode The bytecode generated by the {@link Compiler}
+     * @return The decoded program or <code>null</code> if the bytecode
+     * contains jumps into the middle of an instruction and therefore can't
+     * be decoded
+     */
+    public static int[] decode(int[] bytecode) {
+        int n = bytecode.length;
+
+        // Find the start of all instructions
+        boolean[] starts = new boolean[n];
+        for (int pc = 0; pc < n; ) {
+            starts[pc] = true;
+            int len = length(bytecode[pc]);
+            pc += len < 0 ? 1 : len;
+        }
+
+        int[] code = new int[n];
+        for (int pc = 0; pc < n; ) {
+            int op = bytecode[pc];
+            int len = length(op);
+
+            if (len < 0 || pc + len > n) {
+                // Unknown or truncated: fails if executed
+                code[pc] = ILLEGAL;
+                pc++;
+                continue;
+            }
+
+            switch (op) {
+                case 0x2a: // add <a> <b> <dst>
+                case 0x2b: // sub <a> <b> <dst>
+                case 0x2c: // mul <a> <b> <dst>
+                    code[pc] = ADD_RR + 4 * (op - 0x2a)
+                            + variant(bytecode[pc + 1], bytecode[pc + 2]);
+                    code[pc + 1] = bytecode[pc + 1] & 0x7fffffff;
+                    code[pc + 2] = bytecode[pc + 2] & 0x7fffffff;
+                    code[pc + 3] = bytecode[pc + 3] & 0x7fffffff;
+                    break;
+
+                case 0x2d: // mov <src> <dst>
+                    code[pc] = isReg(bytecode[pc + 1]) ? MOV_R : MOV_I;
+                    code[pc + 1] = bytecode[pc + 1] & 0x7fffffff;
+                    code[pc + 2] = bytecode[pc + 2] & 0x7fffffff;
+                    break;
+
+                case 0x10: // push <a>
+                    code[pc] = isReg(bytecode[pc + 1]) ? PUSH_R : PUSH_I;
+                    code[pc + 1] = bytecode[pc + 1] & 0x7fffffff;
+                    break;
+
+                case 0x11: // pop
+                    code[pc] = POP;
+                    break;
+
+                case 0x12: // dec
+                    code[pc] = DEC;
+                    break;
+
+                case 0x13: // bz <addr>
+                case 0x21: // goto <addr>
+                    code[pc] = op == 0x13 ? BZ : GOTO;
+                    code[pc + 1] = target(bytecode[pc + 1], starts);
+                    if (code[pc + 1] < 0) {
+                        return null;
+                    }
+                    break;
+
+                case 0x42: // ifneq <a> <b> <addr>
+                case 0x43: // ifgt <a> <b> <addr>
+                case 0x44: // ifeq <a> <b> <addr>
+                    code[pc] = IFNEQ_RR + 4 * (op - 0x42)
+                            + variant(bytecode[pc + 1], bytecode[pc + 2]);
+                    code[pc + 1] = bytecode[pc + 1] & 0x7fffffff;
+                    code[pc + 2] = bytecode[pc + 2] & 0x7fffffff;
+                    code[pc + 3] = target(bytecode[pc + 3], starts);
+                    if (code[pc + 3] < 0) {
+                        return null;
+                    }
+                    break;
+
+                case 0x99: // nop
+                    code[pc] = NOP;
+                    break;
+
+                case 0x14: // loop <a> <addr>
+                    code[pc] = isReg(bytecode[pc + 1]) ? LOOP_R : LOOP_I;
+                    code[pc + 1] = bytecode[pc + 1] & 0x7fffffff;
+                    code[pc + 2] = target(bytecode[pc + 2], starts);
+                    if (code[pc + 2] < 0) {
+                        return null;
+                    }
+                    break;
+
+                case 0x15: // next <body> <addr>
+                    code[pc] = NEXT;
+                    code[pc + 1] = target(bytecode[pc + 1], starts);
+                    code[pc + 2] = target(bytecode[pc + 2], starts);
+                    if (code[pc + 1] < 0 || code[pc + 2] < 0) {
+                        return null;
+                    }
+                    break;
+
+                case 0x2e: // inc <reg> <imm>
+                case 0x2f: // dcr <reg> <imm>
+                    code[pc] = op == 0x2e ? INC : DCR;
+                    code[pc + 1] = bytecode[pc + 1] & 0x7fffffff;
+                    code[pc + 2] = bytecode[pc + 2] & 0x7fffffff;
+                    break;
+
+                case 0x45: // dbnz <reg> <imm> <addr>
+                    code[pc] = DBNZ;
+                    code[pc + 1] = bytecode[pc + 1] & 0x7fffffff;
+                    code[pc + 2] = bytecode[pc + 2] & 0x7fffffff;
+                    code[pc + 3] = target(bytecode[pc + 3], starts);
+                    if (code[pc + 3] < 0) {
+                        return null;
+                    }
+                    break;
+
+                case 0x30: // addn <d> <k> <n1> <n2>
+                case 0x31: // subn <d> <k> <n1> <n2>
+                case 0x32: // setn <d> <k> <n1> <n2>
+                    code[pc] = ADDN + (op - 0x30);
+                    code[pc + 1] = bytecode[pc + 1] & 0x7fffffff;
+                    code[pc + 2] = bytecode[pc + 2];
+                    code[pc + 3] = bytecode[pc + 3];
+                    code[pc + 4] = bytecode[pc + 4];
+                    break;
+            }
+
+            pc += len;
+        }
+
+        return code;
+    }
+
+    /**
+     * Returns the variant of an instruction with two value operands
+     *
+     * @param a The first tagged operand
+     * @param b The second tagged operand
+     * @return The offset of the variant from the register-register variant
+     */
+    private static int variant(int a, int b) {
+        return (isReg(a) ? 0 : 2) + (isReg(b) ? 0 : 1);
+    }
+
+    /**
+     * Unmasks and checks a jump target
+     *
+     * @param addr The jump target from the bytecode
+     * @param starts The instruction start markers
+     * @return The jump target or <code>-1</code> if it points into the
+     * middle of an instruction
+     */
+    private static int target(int addr, boolean[] starts) {
+        addr &= 0x7fffffff;
+        if (addr < starts.length && !starts[addr]) {
+            return -1;
+        }
+        return addr;
+    }
+
+}
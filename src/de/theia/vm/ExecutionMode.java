@@ -0,0 +1,27 @@
+package de.theia.vm;
+
+/**
+ * Enumeration of the strategies the {@link VM} can use to execute bytecode
+ *
+ * @author maximilianstrauch
+ */
+public enum ExecutionMode {
+
+    /**
+     * Interprets the bytecode as generated by the {@link Compiler}, decoding
+     * every operand while executing
+     */
+    INTERPRETED,
+
+    /**
+     * Translates the bytecode using the {@link Decoder} before executing it
+     */
+    DECODED,
+
+    /**
+     * Compiles the bytecode to a JVM class using the {@link JitCompiler}. If
+     * this isn't possible the program is executed {@link #DECODED}
+     */
+    COMPILED;
+
+}
@@ -0,0 +1,27 @@
+package de.theia.vm;
+
+/**
+ * Enumeration of the reasons why the {@link VM} ended the execution of a
+ * program
+ *
+ * @author maximilianstrauch
+ */
+public enum ExitStatus {
+
+    /**
+     * The program ran to its end
+     */
+    FINISHED,
+
+    /**
+     * The program was stopped using {@link VM#stop()}
+     */
+    STOPPED,
+
+    /**
+     * The program exceeded the instruction limit or the time limit of the
+     * VM (see {@link VM#setMaxSteps(long)} and {@link VM#setTimeLimit(long)})
+     */
+    BUDGET_EXHAUSTED;
+
+}
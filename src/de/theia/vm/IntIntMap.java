@@ -0,0 +1,205 @@
+package de.theia.vm;
+
+import java.util.Arrays;
+
+/**
+ * A primitive int to int hash map using open addressing with linear probing.
+ * Keys must not be negative since <code>-1</code> marks a free slot.
+ *
+ * @author maximilianstrauch
+ */
+class IntIntMap {
+
+    /**
+     * Marker for a free slot in the key table
+     */
+    private static final int FREE = -1;
+
+    /**
+     * The key and value tables. Both have a length of a power of two
+     */
+    private int[] keys, values;
+
+    /**
+     * Number of entries and the number of entries which triggers a resize
+     */
+    private int size, threshold;
+
+    /**
+     * Creates a new map
+     *
+     * @param capacity The expected number of entries
+     */
+    public IntIntMap(int capacity) {
+        int len = 8;
+        while (len * 3 / 4 < capacity) {
+            len <<= 1;
+        }
+        allocate(len);
+    }
+
+    /**
+     * Allocates new and empty tables
+     *
+     * @param len The length of the tables
+     */
+    private void allocate(int len) {
+        int[] k = new int[len];
+        Arrays.fill(k, FREE);
+        values = new int[len];
+        keys = k;
+        threshold = len * 3 / 4;
+    }
+
+    /**
+     * Calculates the slot to start probing for a key
+     *
+     * @param key The key
+     * @param mask The length of the table minus one
+     * @return The slot
+     */
+    private static int slot(int key, int mask) {
+        int h = key * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the slot of a key or <code>-1</code> if the key is not present
+     *
+     * @param k The key table to search
+     * @param key The key to find
+     * @return The slot of the key
+     */
+    private static int indexOf(int[] k, int key) {
+        int mask = k.length - 1;
+        int i = slot(key, mask);
+        int n;
+        while ((n = k[i]) != FREE) {
+            if (n == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Tests if the map contains the given key
+     *
+     * @param key The key
+     * @return <code>true</code> if the key is present
+     */
+    public boolean containsKey(int key) {
+        return indexOf(keys, key) >= 0;
+    }
+
+    /**
+     * Returns the value for a key. If the map is modified concurrently the
+     * result may be stale but this method never fails
+     *
+     * @param key The key
+     * @param missing The value to return if the key is not present
+     * @return The value of the key or <code>missing</code>
+     */
+    public int get(int key, int missing) {
+        int[] k = keys, v = values;
+        int i = indexOf(k, key);
+        return i < 0 || i >= v.length ? missing : v[i];
+    }
+
+    /**
+     * Associates a value with a key
+     *
+     * @param key The key (must be >= 0)
+     * @param value The value
+     * @return <code>true</code> if the key was added or <code>false</code>
+     * if an existing value was replaced
+     */
+    public boolean put(int key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        int k;
+        while ((k = keys[i]) != FREE) {
+            if (k == key) {
+                values[i] = value;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Moves all entries into tables of a new length
+     *
+     * @param len The new length
+     */
+    private void rehash(int len) {
+        int[] k = new int[len], v = new int[len];
+        Arrays.fill(k, FREE);
+        int mask = len - 1;
+        for (int j = 0; j < keys.length; j++) {
+            if (keys[j] != FREE) {
+                int i = slot(keys[j], mask);
+                while (k[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                k[i] = keys[j];
+                v[i] = values[j];
+            }
+        }
+        values = v;
+        keys = k;
+        threshold = len * 3 / 4;
+    }
+
+    /**
+     * Returns the number of entries
+     *
+     * @return The number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    /**
+     * Returns all keys in no particular order. The result is always
+     * consistent in itself even if the map is modified concurrently
+     *
+     * @return The keys
+     */
+    public int[] keys() {
+        int[] k = keys;
+        int n = 0;
+        for (int key : k) {
+            if (key != FREE) {
+                n++;
+            }
+        }
+        int[] dst = new int[n];
+        int j = 0;
+        for (int i = 0; i < k.length && j < n; i++) {
+            if (k[i] != FREE) {
+                dst[j++] = k[i];
+            }
+        }
+        return j == n ? dst : Arrays.copyOf(dst, j);
+    }
+
+}
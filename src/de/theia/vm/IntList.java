@@ -0,0 +1,98 @@
+package de.theia.vm;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints
+ *
+ * @author maximilianstrauch
+ */
+class IntList {
+
+    /**
+     * The elements; only the first {@link #size} are used
+     */
+    private int[] data;
+
+    /**
+     * Number of elements
+     */
+    private int size;
+
+    /**
+     * Creates a new list
+     *
+     * @param capacity The expected number of elements
+     */
+    public IntList(int capacity) {
+        data = new int[Math.max(capacity, 8)];
+    }
+
+    /**
+     * Appends an element
+     *
+     * @param value The element
+     */
+    public void add(int value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, size << 1);
+        }
+        data[size++] = value;
+    }
+
+    /**
+     * Returns an element
+     *
+     * @param index The index of the element
+     * @return The element
+     */
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return data[index];
+    }
+
+    /**
+     * Replaces an element
+     *
+     * @param index The index of the element
+     * @param value The new element
+     */
+    public void set(int index, int value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        data[index] = value;
+    }
+
+    /**
+     * Returns the number of elements
+     *
+     * @return The number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all elements from an index on
+     *
+     * @param size The new number of elements
+     */
+    public void truncate(int size) {
+        if (size < this.size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Returns the elements as array
+     *
+     * @return A copy of the elements
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+}
@@ -0,0 +1,965 @@
+package de.theia.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles bytecode generated by the {@link Compiler} to a JVM class. Every
+ * register and every slot of the loop counter stack becomes a local
+ * variable of the generated method and all jumps become JVM branches, so
+ * the JVM can optimize the program itself. The generated class extends
+ * {@link CompiledProgram} and is loaded by its own class loader, so it can
+ * be unloaded as soon as it isn't used anymore.
+ *
+ * @author maximilianstrauch
+ */
+public class JitCompiler {
+
+    /**
+     * Used to create unique class names
+     */
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    /**
+     * Internal name of the super class of all generated classes
+     */
+    private static final String BASE = "de/theia/vm/CompiledProgram";
+
+    /**
+     * Largest size of the generated code. Branch offsets are 16 bits
+     */
+    private static final int MAX_CODE = 32767;
+
+    /*
+     * JVM instructions
+     */
+
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11,
+            LDC_W = 0x13, ILOAD = 0x15, ILOAD_0 = 0x1a, ALOAD_0 = 0x2a,
+            ALOAD_1 = 0x2b, IALOAD = 0x2e, ISTORE = 0x36, ISTORE_0 = 0x3b,
+            IASTORE = 0x4f, POP = 0x57, DUP = 0x59, IADD = 0x60, ISUB = 0x64,
+            IMUL = 0x68, IINC = 0x84, IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b,
+            IFGE = 0x9c, IFGT = 0x9d, IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0,
+            IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7, RETURN = 0xb1,
+            INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8,
+            WIDE = 0xc4;
+
+    /**
+     * The bytecode to compile
+     */
+    private final int[] bytecode;
+
+    /**
+     * Depth of the loop counter stack before every instruction or
+     * <code>-1</code> if the instruction is not reachable
+     */
+    private final int[] depth;
+
+    /**
+     * Maps register numbers to indices of the value array
+     */
+    private final IntIntMap registerIndex;
+
+    /**
+     * Register numbers in the order of their index
+     */
+    private int[] registers;
+
+    /**
+     * Number of registers and maximum depth of the loop counter stack
+     */
+    private int registerCount, maxDepth;
+
+    /**
+     * The generated JVM code
+     */
+    private byte[] code;
+
+    /**
+     * Length of the generated JVM code
+     */
+    private int len;
+
+    /**
+     * The JVM code offset of every instruction. The last entry is the offset
+     * of the epilogue which writes back the registers and returns
+     */
+    private final int[] labels;
+
+    /**
+     * Branches to patch: the offset of the branch instruction and the
+     * address of the target instruction
+     */
+    private int[] fixups;
+
+    /**
+     * Number of branches to patch
+     */
+    private int fixupCount;
+
+    /**
+     * Constant pool of the generated class
+     */
+    private final ByteArrayOutputStream pool;
+
+    /**
+     * Constant pool indices of already added entries
+     */
+    private final Map<String, Integer> poolIndex;
+
+    /**
+     * Number of constant pool slots used
+     */
+    private int poolCount;
+
+    /**
+     * Constant pool indices of the called methods
+     */
+    private int creditMethod, checkpointMethod, finishMethod, subtractMethod;
+
+    private JitCompiler(int[] bytecode) {
+        this.bytecode = bytecode;
+        this.depth = new int[bytecode.length];
+        this.labels = new int[bytecode.length + 1];
+        this.registerIndex = new IntIntMap(16);
+        this.registers = new int[16];
+        this.code = new byte[256];
+        this.fixups = new int[32];
+        this.pool = new ByteArrayOutputStream();
+        this.poolIndex = new HashMap<>();
+        this.poolCount = 1;
+    }
+
+    /**
+     * Compiles the bytecode to a JVM class and creates an instance of it
+     *
+     * @param bytecode The bytecode to compile
+     * @return The compiled program or <code>null</code> if the bytecode can't
+     * be compiled: it contains unknown instructions, jumps into the middle of
+     * an instruction, might use the loop counter stack inconsistently or is
+     * too large
+     */
+    public static CompiledProgram compile(int[] bytecode) {
+        try {
+            JitCompiler jit = new JitCompiler(bytecode);
+            if (!jit.analyze()) {
+                return null;
+            }
+            String name = "de/theia/vm/gen/Program" + COUNTER.incrementAndGet();
+            byte[] cls = jit.generate(name);
+            if (cls == null) {
+                return null;
+            }
+
+            Class<?> c = new Loader().define(name.replace('/', '.'), cls);
+            CompiledProgram program = (CompiledProgram)
+                    c.getConstructor().newInstance();
+            program.setRegisters(Arrays.copyOf(jit.registers, jit.registerCount));
+            return program;
+        } catch (IOException | ReflectiveOperationException
+                | LinkageError | SecurityException e) {
+            // The VM falls back to the decoded program, see VM#isCompileFailed()
+            return null;
+        }
+    }
+
+    /**
+     * Class loader for a single generated class
+     */
+    private static class Loader extends ClassLoader {
+
+        public Loader() {
+            super(CompiledProgram.class.getClassLoader());
+        }
+
+        public Class<?> define(String name, byte[] cls) {
+            return defineClass(name, cls, 0, cls.length);
+        }
+
+    }
+
+    /*
+     * Analysis
+     */
+
+    /**
+     * Tests if an operand is a register
+     *
+     * @param arg The tagged operand
+     * @return <code>true</code> for a register
+     */
+    private static boolean isReg(int arg) {
+        return (arg & 0x80000000) != 0;
+    }
+
+    /**
+     * Calculates the depth of the loop counter stack for every reachable
+     * instruction and collects the used registers
+     *
+     * @return <code>false</code> if the bytecode can't be compiled
+     */
+    private boolean analyze() {
+        int n = bytecode.length;
+        boolean[] starts = new boolean[n + 1];
+        for (int pc = 0; pc < n; ) {
+            int l = Decoder.length(bytecode[pc]);
+            if (l < 0 || pc + l > n) {
+                return false;
+            }
+            starts[pc] = true;
+            pc += l;
+        }
+        starts[n] = true;
+
+        // Propagate the stack depth along all control flow edges
+        Arrays.fill(depth, -1);
+        int[] work = new int[16];
+        int top = 0;
+        if (n > 0) {
+            depth[0] = 0;
+            work[top++] = 0;
+        }
+        int[] succ = new int[2], succDepth = new int[2];
+        while (top > 0) {
+            int pc = work[--top];
+            int d = depth[pc];
+            int op = bytecode[pc];
+            int next = pc + Decoder.length(op);
+            int count;
+
+            switch (op) {
+                case 0x10: // push
+                    succ[0] = next; succDepth[0] = d + 1; count = 1;
+                    break;
+                case 0x11: // pop
+                    succ[0] = next; succDepth[0] = d - 1; count = 1;
+                    break;
+                case 0x12: // dec
+                    succ[0] = next; succDepth[0] = d; count = 1;
+                    break;
+                case 0x13: // bz
+                    succ[0] = next; succDepth[0] = d;
+                    succ[1] = target(bytecode[pc + 1]); succDepth[1] = d;
+                    count = 2;
+                    break;
+                case 0x14: // loop
+                    succ[0] = next; succDepth[0] = d + 1;
+                    succ[1] = target(bytecode[pc + 2]); succDepth[1] = d;
+                    count = 2;
+                    break;
+                case 0x15: // next
+                    succ[0] = target(bytecode[pc + 1]); succDepth[0] = d;
+                    succ[1] = target(bytecode[pc + 2]); succDepth[1] = d - 1;
+                    count = 2;
+                    break;
+                case 0x21: // goto
+                    succ[0] = target(bytecode[pc + 1]); succDepth[0] = d;
+                    count = 1;
+                    break;
+                case 0x42: case 0x43: case 0x44: case 0x45: // ifxx, dbnz
+                    succ[0] = next; succDepth[0] = d;
+                    succ[1] = target(bytecode[pc + 3]); succDepth[1] = d;
+                    count = 2;
+                    break;
+                default:
+                    succ[0] = next; succDepth[0] = d; count = 1;
+                    break;
+            }
+
+            // Instructions reading the stack need a value on it
+            if ((op >= 0x11 && op <= 0x13 || op == 0x15) && d < 1) {
+                return false;
+            }
+
+            for (int i = 0; i < count; i++) {
+                int s = succ[i];
+                if (s >= n) {
+                    continue; // End of program
+                }
+                if (!starts[s]) {
+                    return false;
+                }
+                if (depth[s] < 0) {
+                    depth[s] = succDepth[i];
+                    maxDepth = Math.max(maxDepth, succDepth[i]);
+                    if (top == work.length) {
+                        work = Arrays.copyOf(work, top * 2);
+                    }
+                    work[top++] = s;
+                } else if (depth[s] != succDepth[i]) {
+                    return false;
+                }
+            }
+
+            collectRegisters(pc);
+        }
+
+        // Registers, stack slots, credit, "this" and the value array
+        return 3 + registerCount + maxDepth < 0xffff;
+    }
+
+    /**
+     * Unmasks a jump target
+     *
+     * @param addr The jump target
+     * @return The unmasked jump target; at most the program length
+     */
+    private int target(int addr) {
+        return Math.min(addr & 0x7fffffff, bytecode.length);
+    }
+
+    /**
+     * Adds all registers used by an instruction to the register list
+     *
+     * @param pc The address of the instruction
+     */
+    private void collectRegisters(int pc) {
+        switch (bytecode[pc]) {
+            case 0x2a: case 0x2b: case 0x2c: // add, sub, mul
+                addValue(bytecode[pc + 1]);
+                addValue(bytecode[pc + 2]);
+                addRegister(bytecode[pc + 3]);
+                break;
+            case 0x2d: // mov
+                addValue(bytecode[pc + 1]);
+                addRegister(bytecode[pc + 2]);
+                break;
+            case 0x10: case 0x14: // push, loop
+                addValue(bytecode[pc + 1]);
+                break;
+            case 0x42: case 0x43: case 0x44: // ifneq, ifgt, ifeq
+                addValue(bytecode[pc + 1]);
+                addValue(bytecode[pc + 2]);
+                break;
+            case 0x2e: case 0x2f: case 0x45: // inc, dcr, dbnz
+                addRegister(bytecode[pc + 1]);
+                break;
+            case 0x30: case 0x31: case 0x32: // addn, subn, setn
+                addRegister(bytecode[pc + 1]);
+                addValue(bytecode[pc + 2]);
+                addValue(bytecode[pc + 3]);
+                addValue(bytecode[pc + 4]);
+                break;
+        }
+    }
+
+    /**
+     * Adds a register to the register list if the operand is a register
+     *
+     * @param arg The tagged operand
+     */
+    private void addValue(int arg) {
+        if (isReg(arg)) {
+            addRegister(arg);
+        }
+    }
+
+    /**
+     * Adds a register to the register list
+     *
+     * @param reg The register operand
+     */
+    private void addRegister(int reg) {
+        reg &= 0x7fffffff;
+        if (!registerIndex.containsKey(reg)) {
+            if (registerCount == registers.length) {
+                registers = Arrays.copyOf(registers, registerCount * 2);
+            }
+            registerIndex.put(reg, registerCount);
+            registers[registerCount++] = reg;
+        }
+    }
+
+    /*
+     * Code generation
+     */
+
+    /**
+     * Generates the class file
+     *
+     * @param name The internal name of the class
+     * @return The class file or <code>null</code> if the code is too large
+     */
+    private byte[] generate(String name) throws IOException {
+        int thisClass = classRef(name);
+        int superClass = classRef(BASE);
+        int superInit = methodRef(BASE, "<init>", "()V");
+        creditMethod = methodRef(BASE, "credit", "()I");
+        checkpointMethod = methodRef(BASE, "checkpoint", "(I)I");
+        finishMethod = methodRef(BASE, "finish", "(I)V");
+        subtractMethod = methodRef("de/theia/vm/Arithmetic",
+                "subtractRepeatedly", "(IIII)I");
+        int codeAttr = utf8("Code");
+        int initName = utf8("<init>");
+        int initType = utf8("()V");
+        int runName = utf8("run");
+        int runType = utf8("([I)V");
+
+        if (!generateRun()) {
+            return null;
+        }
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(49); // Java 5: no stack map frames needed
+        out.writeShort(poolCount);
+        pool.writeTo(out);
+        out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+
+        // public <init>() { super(); }
+        byte[] init = {(byte) ALOAD_0, (byte) INVOKESPECIAL,
+            (byte) (superInit >> 8), (byte) superInit, (byte) RETURN};
+        out.writeShort(0x0001);
+        out.writeShort(initName);
+        out.writeShort(initType);
+        out.writeShort(1);
+        writeCode(out, codeAttr, 1, 1, init, init.length);
+
+        // public void run(int[] values)
+        out.writeShort(0x0001);
+        out.writeShort(runName);
+        out.writeShort(runType);
+        out.writeShort(1);
+        writeCode(out, codeAttr, 4, 3 + registerCount + maxDepth, code, len);
+
+        out.writeShort(0); // class attributes
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    /**
+     * Writes a code attribute
+     */
+    private static void writeCode(DataOutputStream out, int name, int maxStack,
+            int maxLocals, byte[] code, int len) throws IOException {
+        out.writeShort(name);
+        out.writeInt(12 + len);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(len);
+        out.write(code, 0, len);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /**
+     * Generates the code of the run method
+     *
+     * @return <code>false</code> if the code is too large
+     */
+    private boolean generateRun() {
+        int n = bytecode.length;
+        int epilogue = n;
+        int[] blocks = countBlocks();
+
+        // Load all registers into locals and clear the stack slots
+        for (int i = 0; i < registerCount; i++) {
+            emit(ALOAD_1);
+            pushInt(i);
+            emit(IALOAD);
+            store(2 + i);
+        }
+        for (int i = 0; i < maxDepth; i++) {
+            emit(ICONST_0);
+            store(stackSlot(i));
+        }
+        emit(ALOAD_0);
+        emit(INVOKEVIRTUAL);
+        emit2(creditMethod);
+        store(credit());
+
+        for (int pc = 0; pc < n; pc += Decoder.length(bytecode[pc])) {
+            labels[pc] = len;
+            if (depth[pc] < 0) {
+                continue; // Not reachable
+            }
+            if (len > MAX_CODE) {
+                return false;
+            }
+
+            int op = bytecode[pc];
+            int d = depth[pc];
+            int next = pc + Decoder.length(op);
+
+            // Count the instructions of a basic block on its entry
+            if (blocks[pc] > 0) {
+                increment(credit(), -blocks[pc]);
+            }
+
+            switch (op) {
+                case 0x2a: // add <a> <b> <dst>
+                case 0x2b: // sub <a> <b> <dst>
+                case 0x2c: // mul <a> <b> <dst>
+                    loadValue(bytecode[pc + 1]);
+                    loadValue(bytecode[pc + 2]);
+                    emit(op == 0x2a ? IADD : op == 0x2b ? ISUB : IMUL);
+                    if (op == 0x2b) {
+                        saturate();
+                    }
+                    store(local(bytecode[pc + 3]));
+                    break;
+
+                case 0x2d: // mov <src> <dst>
+                    loadValue(bytecode[pc + 1]);
+                    store(local(bytecode[pc + 2]));
+                    break;
+
+                case 0x10: // push <a>
+                    loadValue(bytecode[pc + 1]);
+                    store(stackSlot(d));
+                    break;
+
+                case 0x11: // pop
+                    break;
+
+                case 0x12: // dec
+                    increment(stackSlot(d - 1), -1);
+                    break;
+
+                case 0x13: // bz <addr>
+                    load(stackSlot(d - 1));
+                    jump(pc, IFEQ, IFNE, target(bytecode[pc + 1]), next);
+                    break;
+
+                case 0x14: // loop <a> <addr>
+                    loadValue(bytecode[pc + 1]);
+                    emit(DUP);
+                    store(stackSlot(d));
+                    jump(pc, IFEQ, IFNE, target(bytecode[pc + 2]), next);
+                    break;
+
+                case 0x15: // next <body> <addr>
+                    increment(stackSlot(d - 1), -1);
+                    load(stackSlot(d - 1));
+                    jump(pc, IFNE, IFEQ, target(bytecode[pc + 1]), next);
+                    jump(pc, GOTO, 0, target(bytecode[pc + 2]), next);
+                    break;
+
+                case 0x21: // goto <addr>
+                    jump(pc, GOTO, 0, target(bytecode[pc + 1]), next);
+                    break;
+
+                case 0x42: // ifneq <a> <b> <addr>
+                case 0x43: // ifgt <a> <b> <addr>
+                case 0x44: // ifeq <a> <b> <addr>
+                    loadValue(bytecode[pc + 1]);
+                    loadValue(bytecode[pc + 2]);
+                    if (op == 0x42) {
+                        jump(pc, IF_ICMPNE, IF_ICMPEQ, 
+                                target(bytecode[pc + 3]), next);
+                    } else if (op == 0x43) {
+                        jump(pc, IF_ICMPGT, IF_ICMPLE, 
+                                target(bytecode[pc + 3]), next);
+                    } else {
+                        jump(pc, IF_ICMPEQ, IF_ICMPNE, 
+                                target(bytecode[pc + 3]), next);
+                    }
+                    break;
+
+                case 0x2e: // inc <reg> <imm>
+                    increment(local(bytecode[pc + 1]),
+                            bytecode[pc + 2] & 0x7fffffff);
+                    break;
+
+                case 0x2f: // dcr <reg> <imm>
+                case 0x45: // dbnz <reg> <imm> <addr>
+                    load(local(bytecode[pc + 1]));
+                    pushInt(bytecode[pc + 2] & 0x7fffffff);
+                    emit(ISUB);
+                    saturate();
+                    if (op == 0x45) {
+                        emit(DUP);
+                        store(local(bytecode[pc + 1]));
+                        jump(pc, IFNE, IFEQ, target(bytecode[pc + 3]), next);
+                    } else {
+                        store(local(bytecode[pc + 1]));
+                    }
+                    break;
+
+                case 0x30: // addn <d> <k> <n1> <n2>
+                    load(local(bytecode[pc + 1]));
+                    loadValue(bytecode[pc + 2]);
+                    loadValue(bytecode[pc + 3]);
+                    emit(IMUL);
+                    loadValue(bytecode[pc + 4]);
+                    emit(IMUL);
+                    emit(IADD);
+                    store(local(bytecode[pc + 1]));
+                    break;
+
+                case 0x31: // subn <d> <k> <n1> <n2>
+                    load(local(bytecode[pc + 1]));
+                    loadValue(bytecode[pc + 2]);
+                    loadValue(bytecode[pc + 3]);
+                    loadValue(bytecode[pc + 4]);
+                    emit(INVOKESTATIC);
+                    emit2(subtractMethod);
+                    store(local(bytecode[pc + 1]));
+                    break;
+
+                case 0x32: // setn <d> <k> <n1> <n2>
+                    loadValue(bytecode[pc + 3]);
+                    branch(IFEQ, pc + 5);
+                    loadValue(bytecode[pc + 4]);
+                    branch(IFEQ, pc + 5);
+                    loadValue(bytecode[pc + 2]);
+                    store(local(bytecode[pc + 1]));
+                    break;
+
+                case 0x99: // nop
+                    break;
+
+                default:
+                    return false;
+            }
+        }
+
+        // Return the remaining credit and write back all registers
+        labels[epilogue] = len;
+        emit(ALOAD_0);
+        load(credit());
+        emit(INVOKEVIRTUAL);
+        emit2(finishMethod);
+        for (int i = 0; i < registerCount; i++) {
+            emit(ALOAD_1);
+            pushInt(i);
+            load(2 + i);
+            emit(IASTORE);
+        }
+        emit(RETURN);
+        if (len > MAX_CODE) {
+            return false;
+        }
+
+        // Patch all branches
+        for (int i = 0; i < fixupCount; i += 2) {
+            int at = fixups[i];
+            int offset = labels[fixups[i + 1]] - at;
+            code[at + 1] = (byte) (offset >> 8);
+            code[at + 2] = (byte) offset;
+        }
+        return true;
+    }
+
+    /**
+     * Counts the instructions of all basic blocks. A basic block starts at
+     * the beginning of the program, at every jump target and after every
+     * jump
+     *
+     * @return The number of instructions of the block starting at an 
+     * address or zero if no block starts there
+     */
+    private int[] countBlocks() {
+        int n = bytecode.length;
+        boolean[] leaders = new boolean[n + 1];
+        leaders[0] = true;
+        for (int pc = 0; pc < n; pc += Decoder.length(bytecode[pc])) {
+            int op = bytecode[pc];
+            int jumps = Optimizer.jumpOperands(op);
+            if (jumps != 0) {
+                leaders[pc + Decoder.length(op)] = true;
+                for (int i = 1; i < Decoder.length(op); i++) {
+                    if ((jumps & (1 << i)) != 0) {
+                        leaders[target(bytecode[pc + i])] = true;
+                    }
+                }
+            }
+        }
+
+        int[] blocks = new int[n];
+        int leader = 0;
+        for (int pc = 0; pc < n; pc += Decoder.length(bytecode[pc])) {
+            if (leaders[pc]) {
+                leader = pc;
+            }
+            blocks[leader]++;
+        }
+        return blocks;
+    }
+
+    /**
+     * Emits a jump. If the credit is used up a backward jump first passes a
+     * checkpoint and leaves the program if it has to end
+     *
+     * @param pc The address of the jump instruction
+     * @param opcode The JVM branch instruction
+     * @param inverse The inverse of the branch instruction; unused for
+     * <code>goto</code>
+     * @param target The address of the target instruction
+     * @param next The address of the next instruction
+     */
+    private void jump(int pc, int opcode, int inverse, int target, int next) {
+        if (target > pc) {
+            branch(opcode, target);
+            return;
+        }
+        if (opcode != GOTO) {
+            branch(inverse, next);
+        }
+        load(credit());
+        branch(IFGT, target);
+        emit(ALOAD_0);
+        load(credit());
+        emit(INVOKEVIRTUAL);
+        emit2(checkpointMethod);
+        emit(DUP);
+        store(credit());
+        branch(IFLT, bytecode.length);
+        branch(GOTO, target);
+    }
+
+    /**
+     * Returns the local variable of a register
+     *
+     * @param reg The register operand
+     * @return The index of the local variable
+     */
+    private int local(int reg) {
+        return 2 + registerIndex.get(reg & 0x7fffffff, 0);
+    }
+
+    /**
+     * Returns the local variable of a stack slot
+     *
+     * @param slot The stack slot
+     * @return The index of the local variable
+     */
+    private int stackSlot(int slot) {
+        return 2 + registerCount + slot;
+    }
+
+    /**
+     * Returns the local variable holding the remaining credit of
+     * instructions (see {@link CompiledProgram})
+     *
+     * @return The index of the local variable
+     */
+    private int credit() {
+        return 2 + registerCount + maxDepth;
+    }
+
+    /**
+     * Replaces a negative value on top of the operand stack by zero
+     */
+    private void saturate() {
+        emit(DUP);
+        emit(IFGE);
+        emit2(5);
+        emit(POP);
+        emit(ICONST_0);
+    }
+
+    /**
+     * Pushes the value of a tagged operand
+     *
+     * @param arg The register or immediate value
+     */
+    private void loadValue(int arg) {
+        if (isReg(arg)) {
+            load(local(arg));
+        } else {
+            pushInt(arg & 0x7fffffff);
+        }
+    }
+
+    /**
+     * Pushes a local variable
+     *
+     * @param local The index of the local variable
+     */
+    private void load(int local) {
+        if (local <= 3) {
+            emit(ILOAD_0 + local);
+        } else if (local <= 0xff) {
+            emit(ILOAD);
+            emit(local);
+        } else {
+            emit(WIDE);
+            emit(ILOAD);
+            emit2(local);
+        }
+    }
+
+    /**
+     * Pops the top of the operand stack into a local variable
+     *
+     * @param local The index of the local variable
+     */
+    private void store(int local) {
+        if (local <= 3) {
+            emit(ISTORE_0 + local);
+        } else if (local <= 0xff) {
+            emit(ISTORE);
+            emit(local);
+        } else {
+            emit(WIDE);
+            emit(ISTORE);
+            emit2(local);
+        }
+    }
+
+    /**
+     * Adds a constant to a local variable
+     *
+     * @param local The index of the local variable
+     * @param value The constant
+     */
+    private void increment(int local, int value) {
+        if (local <= 0xff && value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(IINC);
+            emit(local);
+            emit(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(WIDE);
+            emit(IINC);
+            emit2(local);
+            emit2(value);
+        } else {
+            load(local);
+            pushInt(value);
+            emit(IADD);
+            store(local);
+        }
+    }
+
+    /**
+     * Pushes an int constant
+     *
+     * @param value The constant
+     */
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(BIPUSH);
+            emit(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(SIPUSH);
+            emit2(value);
+        } else {
+            emit(LDC_W);
+            emit2(intConst(value));
+        }
+    }
+
+    /**
+     * Emits a branch which is patched at the end
+     *
+     * @param opcode The branch instruction
+     * @param target The address of the target instruction
+     */
+    private void branch(int opcode, int target) {
+        if (fixupCount == fixups.length) {
+            fixups = Arrays.copyOf(fixups, fixupCount * 2);
+        }
+        fixups[fixupCount++] = len;
+        fixups[fixupCount++] = target;
+        emit(opcode);
+        emit2(0);
+    }
+
+    /**
+     * Emits a byte
+     *
+     * @param b The byte
+     */
+    private void emit(int b) {
+        if (len == code.length) {
+            code = Arrays.copyOf(code, len * 2);
+        }
+        code[len++] = (byte) b;
+    }
+
+    /**
+     * Emits two bytes
+     *
+     * @param s The value to emit as unsigned short
+     */
+    private void emit2(int s) {
+        emit(s >> 8);
+        emit(s);
+    }
+
+    /*
+     * Constant pool
+     */
+
+    private int utf8(String s) throws IOException {
+        Integer i = poolIndex.get("U" + s);
+        if (i == null) {
+            DataOutputStream out = new DataOutputStream(pool);
+            out.writeByte(1);
+            out.writeUTF(s);
+            poolIndex.put("U" + s, i = poolCount++);
+        }
+        return i;
+    }
+
+    private int classRef(String name) throws IOException {
+        Integer i = poolIndex.get("C" + name);
+        if (i == null) {
+            int n = utf8(name);
+            pool.write(7);
+            pool.write(n >> 8);
+            pool.write(n);
+            poolIndex.put("C" + name, i = poolCount++);
+        }
+        return i;
+    }
+
+    private int memberRef(int tag, String owner, String name, String type)
+            throws IOException {
+        String key = "M" + tag + owner + "." + name + ":" + type;
+        Integer i = poolIndex.get(key);
+        if (i == null) {
+            int c = classRef(owner);
+            int nm = utf8(name);
+            int t = utf8(type);
+            pool.write(12); // NameAndType
+            pool.write(nm >> 8);
+            pool.write(nm);
+            pool.write(t >> 8);
+            pool.write(t);
+            int nat = poolCount++;
+            pool.write(tag);
+            pool.write(c >> 8);
+            pool.write(c);
+            pool.write(nat >> 8);
+            pool.write(nat);
+            poolIndex.put(key, i = poolCount++);
+        }
+        return i;
+    }
+
+    private int methodRef(String owner, String name, String type)
+            throws IOException {
+        return memberRef(10, owner, name, type);
+    }
+
+    private int intConst(int value) {
+        String key = "I" + value;
+        Integer i = poolIndex.get(key);
+        if (i == null) {
+            pool.write(3);
+            pool.write(value >> 24);
+            pool.write(value >> 16);
+            pool.write(value >> 8);
+            pool.write(value);
+            poolIndex.put(key, i = poolCount++);
+        }
+        return i;
+    }
+
+}
@@ -1,309 +1,196 @@
 package de.theia.vm;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
-import java.util.HashMap;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 import java.util.Iterator;
-import java.util.Map;
 import static de.theia.vm.Token.*;
 
 /**
  * Lexer for lexing source code of the LOOP, WHILE and GOTO language
- * 
+ *
+ * The lexer iterates over a {@link TokenStream}: a token is reported by its
+ * offset and length, numbers and register indices are already parsed. No
+ * objects are created per token; {@link #getLexeme()} creates a string on
+ * demand only. Reaching an {@link Token#ERROR} token throws the
+ * {@link RecognitionException} describing it.
+ *
+ * Files and channels are tokenized lazily while the compiler reads the
+ * tokens (see {@link TokenStream#stream(CharSequence)}), so the bytecode is
+ * generated without holding the whole program as string or token list.
+ *
  * @author maximilianstrauch
  */
 public class Lexer implements Iterator<Token> {
-    
+
     /**
-     * Keyword to token mapping
+     * The tokens
      */
-    private static final Map<String,Token> KEYWORDS;
-
-    static {
-        KEYWORDS = new HashMap<>();
-        KEYWORDS.put("loop", LOOP);
-        KEYWORDS.put("do", DO);
-        KEYWORDS.put("end", END);
-        KEYWORDS.put("while", WHILE);
-        KEYWORDS.put("if", IF);
-        KEYWORDS.put("then", THEN);
-        KEYWORDS.put("else", ELSE);
-        KEYWORDS.put("goto", GOTO);
-    }
+    private final TokenStream tokens;
 
     /**
-     * The input stream reader
+     * Index of the current token or <code>-1</code> before the first one
      */
-    private final Reader reader;
-    
+    private int index = -1;
+
     /**
-     * The current lexeme
+     * Indicates if the current token was already returned by
+     * {@link #next()}
      */
-    private StringBuffer lexeme = new StringBuffer();
-    
+    private boolean consumed = true;
+
     /**
-     * The current character
+     * Creates a new lexer
+     *
+     * @param program The program to lex. Must not be modified while lexing
      */
-    private int lookahead;
-    
+    public Lexer(CharSequence program) {
+        this(TokenStream.tokenize(program));
+    }
+
     /**
-     * The current token
+     * Creates a new lexer
+     *
+     * @param program The program to lex. Must not be modified while lexing
      */
-    private Token token = null;
-    
+    public Lexer(char[] program) {
+        this(CharBuffer.wrap(program));
+    }
+
     /**
-     * Indicates if the end of file is reached
+     * Creates a new lexer reading a file. The file is memory-mapped
+     *
+     * @param file The file containing the program. Must not be modified
+     * while lexing
+     * @throws IOException If the file can't be read
      */
-    private boolean eof = false;
-    
+    public Lexer(Path file) throws IOException {
+        this(TokenStream.stream(ByteSource.map(file)));
+    }
+
     /**
-     * Stream positions for debugging
+     * Creates a new lexer reading a channel. File channels are
+     * memory-mapped from their current position
+     *
+     * @param channel The channel containing the program; isn't closed
+     * @throws IOException If the channel can't be read
      */
-    private int line = 0, pos = 0, abs = 0;
-    
+    public Lexer(ReadableByteChannel channel) throws IOException {
+        this(TokenStream.stream(ByteSource.read(channel)));
+    }
+
     /**
-     * Creates a new lexer
-     * 
-     * @param program The program to lex
+     * Creates a new lexer reading already recognized tokens
+     *
+     * @param tokens The tokens of the program
      */
-    public Lexer(String program) {
-        reader = new BufferedReader(new StringReader(program));
+    public Lexer(TokenStream tokens) {
+        this.tokens = tokens;
     }
 
     /**
      * Returns the current lexeme
-     * 
+     *
      * @return The current lexeme
      */
     public String getLexeme() {
-        return lexeme.toString();
+        int start = getStart();
+        return tokens.getText().subSequence(start, start + getLength())
+                .toString();
     }
 
     /**
-     * Current line
-     * 
-     * @return Line starting from zero
+     * Returns the offset of the current token
+     *
+     * @return Index of the first character of the token
      */
-    public int getLine() {
-        return line;
+    public int getStart() {
+        return index < 0 ? 0 : tokens.getStart(index);
     }
 
     /**
-     * Current character relative to the current line
-     * 
-     * @return Character in line starting from zero
+     * Returns the length of the current token
+     *
+     * @return Number of characters of the token; zero for {@link Token#EOF}
      */
-    public int getPos() {
-        return pos;
+    public int getLength() {
+        return index < 0 ? 0 : tokens.getLength(index);
     }
 
     /**
-     * The current absolute stream position
-     * 
-     * @return Index of the current character in the entire stream
+     * Returns the value of the current token
+     *
+     * @return The number of a {@link Token#NUM}, the register index of a
+     * {@link Token#VAR} or zero for other tokens
      */
-    public int getAbs() {
-        return abs;
+    public int getValue() {
+        return index < 0 ? 0 : tokens.getValue(index);
     }
-    
+
     /**
-     * Resets the lexeme and token
+     * Returns the time spent recognizing the tokens so far
+     *
+     * @return The time in nanoseconds
      */
-    private void reset() throws IOException {
-        if (eof) {
-            throw new IllegalStateException();
-        }
-        lexeme.setLength(0);
-        token = null;
-        if (lookahead == 0) {
-            read();
-        }
+    long getScanNanos() {
+        return tokens.getScanNanos();
     }
-    
+
     /**
-     * Reads the next character, appends it to the lexeme and moves it onto
-     * the lookahead variable
+     * Current line
+     *
+     * @return Line starting from zero
      */
-    private void read() throws IOException {
-        if (eof) {
-            throw new IllegalStateException();
-        }
-        if (lookahead != 0) {
-            lexeme.append((char) lookahead);
-        }
-        lookahead = reader.read();
-        
-        if (lookahead == '\n') {
-            line++;
-            abs++;
-            pos = 0;
-        } else {
-            pos++;
-            abs++;
-        }
+    public int getLine() {
+        return tokens.lineOf(getStart() + getLength());
     }
-    
+
     /**
-     * Recognizes the next token
+     * Current character relative to the current line
+     *
+     * @return Character in line starting from one
      */
-    private void lex() throws IOException, RecognitionException {
-        reset();
-        
-        // Skip all whitespace characters
-        while (Character.isWhitespace(lookahead)) {
-            read();
-        }
-        reset();
-        
-        switch (lookahead) {
-            
-            case -1: /* EOF reached */
-                eof = true;
-                token = EOF;
-                return;
-                
-            case ':': /* Either label separation or assign */
-                token = COLON;
-                read();
-                if (lookahead == '=') {
-                    token = ASSIGN;
-                    read();
-                }
-                return;
-               
-            case ';': /* Statement sequence separator */
-                token = SEMICOLON;
-                read();
-                return;
-                
-            case '=': /* Equality test */
-                token = EQU;
-                read();
-                return;
-                
-            case '+': /* Math operator */
-                token = PLUS;
-                read();
-                return;
-                
-            case '-': /* Math operator */
-                token = MINUS;
-                read();
-                return;
-                
-            case '*': /* Math operator */
-                token = MULT;
-                read();
-                return;
-                
-            case '!': /* The start of the not equals operator */
-                read();
-                if (lookahead == '=') {
-                    token = NEQ;
-                    read();
-                    return;
-                }
-                break;
-                
-            case '<': /* Comparison operator */
-                read();
-                if (lookahead == '=') {
-                    token = LTE;
-                    read();
-                    return;
-                }
-        }
-        
-        // Lex a variable
-        if (lookahead == 'x' || lookahead == 'X') {
-            boolean isDigit = true;
-            read();
-            do {
-                isDigit &= Character.isDigit(lookahead);
-                read();
-            } while (lookahead > -1 && Character.isDigit(lookahead));
-
-            if (isDigit) {
-                token = VAR;
-                return;
-            }
-
-            throw new RecognitionException(
-                    "Variable expected but found: " + (char) lookahead,
-                    line, 
-                    pos, 
-                    abs
-            );
-        }
-        
-        // Recognize keywords
-        if (Character.isLetter(lookahead)) {
-            do {
-                read();
-            } while (Character.isLetter(lookahead));
-            
-            String lexeme = getLexeme();
-            if (KEYWORDS.containsKey(lexeme)) {
-                token = KEYWORDS.get(lexeme);
-                return;
-            }
+    public int getPos() {
+        return tokens.columnOf(getStart() + getLength());
+    }
 
-            throw new RecognitionException(
-                    "Unkown keyword: '" + lexeme + "'", 
-                    line, 
-                    pos, 
-                    abs - lexeme.length() - 1, 
-                    abs - 1
-            );
-        }
-        
-        // Recognize numbers
-        if (Character.isDigit(lookahead)) {
-            do {
-                read();
-            } while (Character.isDigit(lookahead));
-            token = NUM;
-            return;
-        }
-        
-        throw new RecognitionException(
-                "Unkown character: '" + (char) lookahead + "'", 
-                line, 
-                pos, 
-                abs
-        );
+    /**
+     * The current absolute stream position
+     *
+     * @return Index of the character after the current token plus one
+     */
+    public int getAbs() {
+        return getStart() + getLength() + 1;
     }
-    
+
     @Override
     public boolean hasNext() {
-        if (token != null) {
+        if (!consumed) {
             return true;
         }
-        
-        if (eof) {
+
+        if (index >= 0 && tokens.getKind(index) == EOF) {
             return false;
         }
-        
-        try {
-            lex();
-        } catch (IOException e) {
-            System.err.println("Lexer error: " + e);
+
+        index++;
+        consumed = false;
+        tokens.fetch(index);
+        if (tokens.getKind(index) == ERROR) {
+            throw tokens.getError(index);
         }
-        
         return true;
     }
 
     @Override
     public Token next() {
         if (hasNext()) {
-            Token retval = token;
-            token = null;
-            return retval;
+            consumed = true;
+            return tokens.getKind(index);
         }
-        
+
         throw new IllegalStateException();
     }
-    
+
 }
@@ -0,0 +1,203 @@
+package de.theia.vm;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the work of all {@link VM}s and {@link Compiler}s of the process.
+ * Every run and every compilation reports here, no matter if it was started
+ * by the GUI, the {@link Runner} or a {@link BatchExecutor}. The counters
+ * can be read directly or by JMX after {@link #register()}.
+ *
+ * @author maximilianstrauch
+ */
+public final class Metrics implements MetricsMBean {
+
+    /**
+     * The name of the MBean
+     */
+    public static final String OBJECT_NAME = "de.theia:type=Metrics";
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    // Runs
+    private final LongAdder runs = new LongAdder();
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+    private volatile long lastInstructions, lastNanos;
+    private volatile int lastRegisters;
+    private final AtomicInteger maxStackDepth = new AtomicInteger();
+
+    // Compilations
+    private final LongAdder compilations = new LongAdder();
+    private final LongAdder lexNanos = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder relocateNanos = new LongAdder();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the metrics of this process
+     *
+     * @return The metrics
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics at the platform MBean server. Does nothing if
+     * they are already registered
+     *
+     * @return <code>true</code> if the metrics are registered
+     */
+    public static boolean register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reports the start of a run
+     */
+    void runStarted() {
+        inProgress.incrementAndGet();
+    }
+
+    /**
+     * Reports the end of a run
+     *
+     * @param steps Number of executed instructions
+     * @param nanos Run time
+     * @param stackDepth Maximum stack depth of the program
+     * @param registers Number of used registers
+     */
+    void runFinished(long steps, long nanos, int stackDepth, int registers) {
+        inProgress.decrementAndGet();
+        runs.increment();
+        instructions.add(steps);
+        runNanos.add(nanos);
+        lastInstructions = steps;
+        lastNanos = nanos;
+        lastRegisters = registers;
+        int max;
+        while (stackDepth > (max = maxStackDepth.get())
+                && !maxStackDepth.compareAndSet(max, stackDepth)) {
+            // Retry
+        }
+    }
+
+    /**
+     * Reports a compilation
+     *
+     * @param lex Time spent recognizing tokens
+     * @param parse Time spent parsing
+     * @param relocate Time spent resolving and optimizing jump addresses
+     */
+    void compiled(long lex, long parse, long relocate) {
+        compilations.increment();
+        lexNanos.add(lex);
+        parseNanos.add(parse);
+        relocateNanos.add(relocate);
+    }
+
+    /**
+     * Computes instructions per second
+     *
+     * @param steps Number of instructions
+     * @param nanos Run time
+     * @return The instructions per second or zero without run time
+     */
+    private static double perSecond(long steps, long nanos) {
+        return nanos <= 0 ? 0 : steps * 1e9 / nanos;
+    }
+
+    @Override
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    @Override
+    public int getRunsInProgress() {
+        return inProgress.get();
+    }
+
+    @Override
+    public long getInstructions() {
+        return instructions.sum();
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return perSecond(instructions.sum(), runNanos.sum());
+    }
+
+    @Override
+    public long getLastInstructions() {
+        return lastInstructions;
+    }
+
+    @Override
+    public double getLastInstructionsPerSecond() {
+        return perSecond(lastInstructions, lastNanos);
+    }
+
+    @Override
+    public int getMaxStackDepth() {
+        return maxStackDepth.get();
+    }
+
+    @Override
+    public int getLastRegistersTouched() {
+        return lastRegisters;
+    }
+
+    @Override
+    public long getCompilations() {
+        return compilations.sum();
+    }
+
+    @Override
+    public double getLexMillis() {
+        return lexNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getParseMillis() {
+        return parseNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getRelocateMillis() {
+        return relocateNanos.sum() / 1e6;
+    }
+
+    @Override
+    public void reset() {
+        runs.reset();
+        instructions.reset();
+        runNanos.reset();
+        lastInstructions = 0;
+        lastNanos = 0;
+        lastRegisters = 0;
+        maxStackDepth.set(0);
+        compilations.reset();
+        lexNanos.reset();
+        parseNanos.reset();
+        relocateNanos.reset();
+    }
+
+}
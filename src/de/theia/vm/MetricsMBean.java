@@ -0,0 +1,78 @@
+package de.theia.vm;
+
+/**
+ * Management interface of the {@link Metrics}, registered as
+ * <code>de.theia:type=Metrics</code>
+ *
+ * @author maximilianstrauch
+ */
+public interface MetricsMBean {
+
+    /**
+     * @return Number of finished program runs, i.e. calls of
+     * {@link VM#execute()}
+     */
+    long getRuns();
+
+    /**
+     * @return Number of program runs in progress
+     */
+    int getRunsInProgress();
+
+    /**
+     * @return Number of instructions executed by all runs
+     */
+    long getInstructions();
+
+    /**
+     * @return Instructions executed per second of run time by all runs
+     */
+    double getInstructionsPerSecond();
+
+    /**
+     * @return Number of instructions executed by the last finished run
+     */
+    long getLastInstructions();
+
+    /**
+     * @return Instructions executed per second by the last finished run
+     */
+    double getLastInstructionsPerSecond();
+
+    /**
+     * @return Maximum stack depth of all programs run
+     */
+    int getMaxStackDepth();
+
+    /**
+     * @return Number of registers used by the last finished run
+     */
+    int getLastRegistersTouched();
+
+    /**
+     * @return Number of compiled programs
+     */
+    long getCompilations();
+
+    /**
+     * @return Time spent recognizing tokens by all compilations in ms
+     */
+    double getLexMillis();
+
+    /**
+     * @return Time spent parsing by all compilations in ms
+     */
+    double getParseMillis();
+
+    /**
+     * @return Time spent resolving and optimizing jump addresses by all
+     * compilations in ms
+     */
+    double getRelocateMillis();
+
+    /**
+     * Resets all counters
+     */
+    void reset();
+
+}
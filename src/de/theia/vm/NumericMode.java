@@ -0,0 +1,30 @@
+package de.theia.vm;
+
+/**
+ * Enumeration of the number ranges the {@link VM} can compute with
+ *
+ * @author maximilianstrauch
+ */
+public enum NumericMode {
+
+    /**
+     * 32 bit registers; additions and multiplications wrap around on
+     * overflow. Supports all {@link ExecutionMode}s
+     */
+    INT32,
+
+    /**
+     * 64 bit registers; an overflow stops the program with a
+     * {@link VMException}. Programs are always interpreted
+     */
+    INT64,
+
+    /**
+     * Unlimited registers. Registers are 64 bit until a result overflows,
+     * only such registers are stored as {@link java.math.BigInteger}.
+     * Results of more than 2^24 bits stop the program with a
+     * {@link VMException}. Programs are always interpreted
+     */
+    ARBITRARY;
+
+}
@@ -0,0 +1,315 @@
+package de.theia.vm;
+
+import java.util.Arrays;
+
+/**
+ * Rewrites the bytecode generated by the {@link Compiler} to execute fewer
+ * instructions. Common instruction sequences are replaced by fused
+ * instructions (superinstructions):
+ *
+ * <ul>
+ * <li>A LOOP (<code>push; bz; ...; dec; goto; pop</code>) becomes
+ * <code>loop; ...; next</code></li>
+ * <li>The back edge of a WHILE loop (<code>goto</code> to the loop test)
+ * is replaced by the inverted loop test; if it is preceded by a decrement
+ * of the tested register both are fused into <code>dbnz</code></li>
+ * <li>Adding or subtracting an immediate to/from a register becomes
+ * <code>inc</code> or <code>dcr</code></li>
+ * <li>All <code>nop</code>s are removed</li>
+ * </ul>
+ *
+ * @author maximilianstrauch
+ */
+public class Optimizer {
+
+    private Optimizer() {
+        // Static class
+    }
+
+    /**
+     * Returns the operands of an instruction which are jump targets
+     *
+     * @param opcode The opcode
+     * @return Bit i is set if operand i (the opcode is operand 0) is a
+     * jump target
+     */
+    static int jumpOperands(int opcode) {
+        switch (opcode) {
+            case 0x13: // bz <addr>
+            case 0x21: // goto <addr>
+                return 1 << 1;
+            case 0x14: // loop <a> <addr>
+                return 1 << 2;
+            case 0x15: // next <body> <addr>
+                return (1 << 1) | (1 << 2);
+            case 0x42: // ifneq <a> <b> <addr>
+            case 0x43: // ifgt <a> <b> <addr>
+            case 0x44: // ifeq <a> <b> <addr>
+            case 0x45: // dbnz <reg> <imm> <addr>
+                return 1 << 3;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Tests if an operand is a register
+     *
+     * @param arg The tagged operand
+     * @return <code>true</code> for a register
+     */
+    private static boolean isReg(int arg) {
+        return (arg & 0x80000000) != 0;
+    }
+
+    /**
+     * Fuses instructions of the given bytecode
+     *
+     * @param bytecode The bytecode to optimize
+     * @return The optimized bytecode or the given bytecode if it can't be
+     * optimized because it contains unknown instructions or jumps into the
+     * middle of an instruction
+     */
+    public static int[] fuse(int[] bytecode) {
+        int n = bytecode.length;
+
+        // Find all instruction starts and count the jumps to every address.
+        // Jumps beyond the end of the program are treated as jumps to the end
+        boolean[] starts = new boolean[n + 1];
+        int[] refs = new int[n + 1];
+        for (int pc = 0; pc < n; ) {
+            int len = Decoder.length(bytecode[pc]);
+            if (len < 0 || pc + len > n) {
+                return bytecode;
+            }
+            starts[pc] = true;
+            int jumps = jumpOperands(bytecode[pc]);
+            for (int i = 1; i < len; i++) {
+                if ((jumps & (1 << i)) != 0) {
+                    refs[target(bytecode[pc + i], n)]++;
+                }
+            }
+            pc += len;
+        }
+        starts[n] = true;
+        for (int i = 0; i < n; i++) {
+            if (refs[i] > 0 && !starts[i]) {
+                return bytecode;
+            }
+        }
+
+        // Instructions which are already covered by a fused instruction
+        boolean[] skip = new boolean[n];
+
+        // For the dec instruction of a fused loop: the start of the loop body
+        int[] loopBody = new int[n];
+        Arrays.fill(loopBody, -1);
+
+        // The new code. Jump targets are written as old addresses first and
+        // relocated at the end
+        int[] out = new int[2 * n];
+        boolean[] isTarget = new boolean[2 * n];
+        int[] addr = new int[n + 1];
+        int len = 0, mapped = 0;
+
+        for (int pc = 0; pc < n; pc += Decoder.length(bytecode[pc])) {
+            int op = bytecode[pc];
+            if (skip[pc] || op == 0x99) {
+                continue;
+            }
+
+            // All skipped addresses up to here now refer to this instruction
+            while (mapped <= pc) {
+                addr[mapped++] = len;
+            }
+
+            if (op == 0x10 && isLoop(bytecode, pc, starts, refs)) {
+                // push <a>; bz <end> => loop <a> <end+1>
+                int end = target(bytecode[pc + 3], n);
+                out[len++] = 0x14;
+                out[len++] = bytecode[pc + 1];
+                isTarget[len] = true;
+                out[len++] = end + 1;
+
+                // dec; goto <bz>; pop => next <body> <end+1>
+                skip[pc + 2] = true;
+                loopBody[end - 3] = pc + 4;
+                skip[end - 2] = true;
+                skip[end] = true;
+                continue;
+            }
+
+            if (op == 0x12 && loopBody[pc] >= 0) {
+                out[len++] = 0x15;
+                isTarget[len] = true;
+                out[len++] = loopBody[pc];
+                isTarget[len] = true;
+                out[len++] = pc + 4;
+                continue;
+            }
+
+            if (op == 0x2b && isCountdown(bytecode, pc, starts, refs)) {
+                // sub <r> <imm> <r>; goto <ifeq r 0> => dbnz <r> <imm> <body>
+                out[len++] = 0x45;
+                out[len++] = bytecode[pc + 1];
+                out[len++] = bytecode[pc + 2];
+                isTarget[len] = true;
+                out[len++] = target(bytecode[pc + 5], n) + 4;
+                skip[pc + 4] = true;
+                continue;
+            }
+
+            if (op == 0x21 && isBackEdge(bytecode, pc, starts)) {
+                // goto <ifeq a b end> => ifneq a b <body> (and vice versa)
+                int test = target(bytecode[pc + 1], n);
+                out[len++] = bytecode[test] == 0x44 ? 0x42 : 0x44;
+                out[len++] = bytecode[test + 1];
+                out[len++] = bytecode[test + 2];
+                isTarget[len] = true;
+                out[len++] = test + 4;
+                continue;
+            }
+
+            if (op == 0x2a && isReg(bytecode[pc + 3])
+                    && !isReg(bytecode[pc + 2])
+                    && bytecode[pc + 1] == bytecode[pc + 3]) {
+                // add <r> <imm> <r> => inc <r> <imm>
+                out[len++] = 0x2e;
+                out[len++] = bytecode[pc + 3];
+                out[len++] = bytecode[pc + 2];
+                continue;
+            }
+
+            if (op == 0x2a && isReg(bytecode[pc + 3])
+                    && !isReg(bytecode[pc + 1])
+                    && bytecode[pc + 2] == bytecode[pc + 3]) {
+                // add <imm> <r> <r> => inc <r> <imm>
+                out[len++] = 0x2e;
+                out[len++] = bytecode[pc + 3];
+                out[len++] = bytecode[pc + 1];
+                continue;
+            }
+
+            if (op == 0x2b && isReg(bytecode[pc + 3])
+                    && !isReg(bytecode[pc + 2])
+                    && bytecode[pc + 1] == bytecode[pc + 3]) {
+                // sub <r> <imm> <r> => dcr <r> <imm>
+                out[len++] = 0x2f;
+                out[len++] = bytecode[pc + 3];
+                out[len++] = bytecode[pc + 2];
+                continue;
+            }
+
+            // Copy all other instructions
+            int jumps = jumpOperands(op);
+            out[len++] = op;
+            for (int i = 1; i < Decoder.length(op); i++) {
+                if ((jumps & (1 << i)) != 0) {
+                    isTarget[len] = true;
+                    out[len++] = target(bytecode[pc + i], n);
+                } else {
+                    out[len++] = bytecode[pc + i];
+                }
+            }
+        }
+        while (mapped <= n) {
+            addr[mapped++] = len;
+        }
+
+        // Relocate all jump targets
+        for (int i = 0; i < len; i++) {
+            if (isTarget[i]) {
+                out[i] = addr[out[i]];
+            }
+        }
+
+        return Arrays.copyOf(out, len);
+    }
+
+    /**
+     * Unmasks a jump target
+     *
+     * @param addr The jump target from the bytecode
+     * @param n The length of the bytecode
+     * @return The jump target; at most the length of the bytecode
+     */
+    private static int target(int addr, int n) {
+        return Math.min(addr & 0x7fffffff, n);
+    }
+
+    /**
+     * Tests if a push instruction starts a loop which can be fused. This is
+     * the case if it is followed by <code>bz &lt;end&gt;</code>, the
+     * instruction at <code>end</code> is a <code>pop</code> which is only
+     * reached by this branch and the loop body is followed by a
+     * <code>dec</code> and a <code>goto</code> to the branch
+     *
+     * @param bytecode The bytecode
+     * @param pc Address of the push instruction
+     * @param starts The instruction start markers
+     * @param refs The number of jumps to every address
+     * @return <code>true</code> if the loop can be fused
+     */
+    private static boolean isLoop(int[] bytecode, int pc, boolean[] starts,
+            int[] refs) {
+        int n = bytecode.length;
+        if (pc + 3 >= n || !starts[pc + 2] || bytecode[pc + 2] != 0x13) {
+            return false;
+        }
+        int end = target(bytecode[pc + 3], n);
+        int dec = end - 3;
+        return end < n && dec >= pc + 4 && starts[dec] && starts[end]
+                && bytecode[dec] == 0x12
+                && bytecode[dec + 1] == 0x21
+                && target(bytecode[dec + 2], n) == pc + 2
+                && bytecode[end] == 0x11
+                && refs[pc + 2] == 1 && refs[end] == 1
+                && refs[dec] == 0 && refs[dec + 1] == 0;
+    }
+
+    /**
+     * Tests if a goto is the back edge of a loop which can be inverted. This
+     * is the case if it jumps to a <code>ifeq</code> or <code>ifneq</code>
+     * which jumps to the instruction after the goto
+     *
+     * @param bytecode The bytecode
+     * @param pc The address of the goto
+     * @param starts The instruction start markers
+     * @return <code>true</code> if the back edge can be inverted
+     */
+    private static boolean isBackEdge(int[] bytecode, int pc, boolean[] starts) {
+        int n = bytecode.length;
+        int test = target(bytecode[pc + 1], n);
+        return test < n && starts[test]
+                && (bytecode[test] == 0x44 || bytecode[test] == 0x42)
+                && target(bytecode[test + 3], n) == pc + 2;
+    }
+
+    /**
+     * Tests if a sub instruction decrements a register by an immediate and
+     * is followed by the back edge of a loop testing this register for
+     * zero. Both can be fused to <code>dbnz</code>
+     *
+     * @param bytecode The bytecode
+     * @param pc The address of the sub instruction
+     * @param starts The instruction start markers
+     * @param refs The number of jumps to every address
+     * @return <code>true</code> if both can be fused
+     */
+    private static boolean isCountdown(int[] bytecode, int pc,
+            boolean[] starts, int[] refs) {
+        int n = bytecode.length;
+        int jump = pc + 4;
+        if (!isReg(bytecode[pc + 3]) || isReg(bytecode[pc + 2])
+                || bytecode[pc + 1] != bytecode[pc + 3]
+                || jump >= n || bytecode[jump] != 0x21 || refs[jump] != 0
+                || !isBackEdge(bytecode, jump, starts)) {
+            return false;
+        }
+        int test = target(bytecode[jump + 1], n);
+        return bytecode[test] == 0x44
+                && bytecode[test + 1] == bytecode[pc + 3]
+                && bytecode[test + 2] == 0;
+    }
+
+}
@@ -1,5 +1,7 @@
 package de.theia.vm;
 
+import java.io.PrintStream;
+
 /**
  * Pretty prints (decompiles) the bytecode to a readable format
  * 
@@ -33,99 +35,231 @@ public class PrettyPrint {
         StringBuilder buf = new StringBuilder();
         buf.append("Code:\n");
         
-        int ln = 0, tmp;
         for (int i = 0; i < bytecode.length; i++) {
-            
             buf.append(String.format("%3d", i));
             buf.append(": ");
+            i = instruction(bytecode, i, buf);
+            buf.append("\n");
+        }
+
+        return buf.toString();
+    }
+    
+    /**
+     * Pretty prints the bytecode instruction by instruction, so the whole 
+     * listing of a large program is never held in memory
+     * 
+     * @param bytecode The bytecode to pretty print
+     * @param out Receives the string representation
+     */
+    public static void print(int[] bytecode, PrintStream out) {
+        StringBuilder buf = new StringBuilder();
+        out.print("Code:\n");
+        
+        for (int i = 0; i < bytecode.length; i++) {
+            buf.setLength(0);
+            buf.append(String.format("%3d", i));
+            buf.append(": ");
+            i = instruction(bytecode, i, buf);
+            buf.append("\n");
+            out.append(buf);
+        }
+    }
+    
+    /**
+     * Pretty prints the bytecode annotated with a profile: every 
+     * instruction with its number of executions and their share of all 
+     * executed instructions, every branch with the number of jumps and 
+     * their share of its executions
+     * 
+     * @param bytecode The bytecode to pretty print
+     * @param profile The profile of the bytecode (see 
+     * {@link VM#setProfile(Profile)})
+     * @return The string representation
+     */
+    public static String print(int[] bytecode, Profile profile) {
+        StringBuilder buf = new StringBuilder();
+        long total = profile.getTotal();
+        buf.append(String.format("Code (%d instructions executed):%n", total));
+        buf.append(String.format("%12s %6s  %s%n", "count", "%", "instruction"));
+        
+        for (int i = 0; i < bytecode.length; i++) {
+            long count = profile.getCount(i);
+            buf.append(String.format("%12d %5.1f%%  %3d: ", count, 
+                    total == 0 ? 0.0 : 100.0 * count / total, i));
+            int at = i;
+            i = instruction(bytecode, i, buf);
             
-            switch (bytecode[i]) {
-                
-                case 0x2a:
-                case 0x2b:
-                case 0x2c:
-                    switch (bytecode[i] - 0x2a) {
-                        case 0: buf.append("add "); break;
-                        case 1: buf.append("sub "); break;
-                        case 2: buf.append("mul "); break;
-                    }
-                    
-                    buf.append(formatNumReg(bytecode[++i])); // arg1
-                    buf.append(", ");
-                    buf.append(formatNumReg(bytecode[++i])); // arg2
-                    buf.append(", ");
-                    buf.append(formatNumReg(bytecode[++i])); // dst
-                    break;
-                
-                case 0x2d:
-                    buf.append("mov ");
-                    buf.append(formatNumReg(bytecode[++i])); // src
-                    buf.append(", ");
-                    buf.append(formatNumReg(bytecode[++i])); // dst
-                    break;
-                    
-                case 0x10:
-                    buf.append(String.format("push x%d", bytecode[++i] & 0x7fffffff));
-                    break;
-                    
-                case 0x11:
-                    buf.append("pop");
-                    break;
-                
-                case 0x12:
-                    buf.append("dec");
-                    break;
-                    
-                case 0x13:
-                    buf.append(String.format("bz #%d", bytecode[++i]));
-                    break;
-                    
-                case 0x99:
-                    buf.append("nop");
-                    break;
-                    
-                case 0x21:
-                    buf.append(String.format("goto #%d", bytecode[++i]));
-                    break;
-                    
-                case 0x42:
-                    buf.append("ifneq ");
-                    buf.append(formatNumReg(bytecode[++i])); // arg1
-                    buf.append(", ");
-                    buf.append(formatNumReg(bytecode[++i])); // arg2
-                    buf.append(", #");
-                    buf.append(bytecode[++i]); // addr
-                    break;
-                    
-                case 0x43:
-                    buf.append("ifgt ");
-                    buf.append(formatNumReg(bytecode[++i])); // arg1
-                    buf.append(", ");
-                    buf.append(formatNumReg(bytecode[++i])); // arg2
-                    buf.append(", #");
-                    buf.append(bytecode[++i]); // addr
-                    break;
-                    
-                case 0x44:
-                    buf.append("ifeq ");
-                    buf.append(formatNumReg(bytecode[++i])); // arg1
-                    buf.append(", ");
-                    buf.append(formatNumReg(bytecode[++i])); // arg2
-                    buf.append(", #");
-                    buf.append(bytecode[++i]); // addr
-                    break;
-                    
-                    
-                default:
-                    buf.append("<Unkown opcode>");
-                    break;
+            if (count > 0 && isBranch(bytecode[at])) {
+                long taken = profile.getTaken(at);
+                buf.append(String.format("    ; taken %d (%.1f%%)", 
+                        taken, 100.0 * taken / count));
             }
-            
-            
             buf.append("\n");
         }
 
         return buf.toString();
     }
     
+    /**
+     * Checks if an instruction may jump
+     * 
+     * @param opcode The opcode of the instruction
+     * @return <code>true</code> for branch instructions
+     */
+    private static boolean isBranch(int opcode) {
+        switch (opcode) {
+            case 0x13: // bz
+            case 0x21: // goto
+            case 0x42: // ifneq
+            case 0x43: // ifgt
+            case 0x44: // ifeq
+            case 0x14: // loop
+            case 0x15: // next
+            case 0x45: // dbnz
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Pretty prints one instruction
+     * 
+     * @param bytecode The bytecode
+     * @param i The address of the instruction
+     * @param buf Receives the instruction
+     * @return The address of the last int of the instruction
+     */
+    private static int instruction(int[] bytecode, int i, StringBuilder buf) {
+        switch (bytecode[i]) {
+            
+            case 0x2a:
+            case 0x2b:
+            case 0x2c:
+                switch (bytecode[i] - 0x2a) {
+                    case 0: buf.append("add "); break;
+                    case 1: buf.append("sub "); break;
+                    case 2: buf.append("mul "); break;
+                }
+                
+                buf.append(formatNumReg(bytecode[++i])); // arg1
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // arg2
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // dst
+                break;
+            
+            case 0x2d:
+                buf.append("mov ");
+                buf.append(formatNumReg(bytecode[++i])); // src
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // dst
+                break;
+                
+            case 0x10:
+                buf.append(String.format("push x%d", bytecode[++i] & 0x7fffffff));
+                break;
+                
+            case 0x11:
+                buf.append("pop");
+                break;
+            
+            case 0x12:
+                buf.append("dec");
+                break;
+                
+            case 0x13:
+                buf.append(String.format("bz #%d", bytecode[++i]));
+                break;
+                
+            case 0x99:
+                buf.append("nop");
+                break;
+                
+            case 0x21:
+                buf.append(String.format("goto #%d", bytecode[++i]));
+                break;
+                
+            case 0x42:
+                buf.append("ifneq ");
+                buf.append(formatNumReg(bytecode[++i])); // arg1
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // arg2
+                buf.append(", #");
+                buf.append(bytecode[++i]); // addr
+                break;
+                
+            case 0x43:
+                buf.append("ifgt ");
+                buf.append(formatNumReg(bytecode[++i])); // arg1
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // arg2
+                buf.append(", #");
+                buf.append(bytecode[++i]); // addr
+                break;
+                
+            case 0x44:
+                buf.append("ifeq ");
+                buf.append(formatNumReg(bytecode[++i])); // arg1
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // arg2
+                buf.append(", #");
+                buf.append(bytecode[++i]); // addr
+                break;
+                
+            case 0x14:
+                buf.append("loop ");
+                buf.append(formatNumReg(bytecode[++i])); // counter
+                buf.append(", #");
+                buf.append(bytecode[++i]); // addr
+                break;
+                
+            case 0x15:
+                buf.append(String.format("next #%d, #%d", 
+                        bytecode[++i], bytecode[++i]));
+                break;
+                
+            case 0x2e:
+            case 0x2f:
+                buf.append(bytecode[i] == 0x2e ? "inc " : "dcr ");
+                buf.append(formatNumReg(bytecode[++i])); // reg
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // imm
+                break;
+                
+            case 0x45:
+                buf.append("dbnz ");
+                buf.append(formatNumReg(bytecode[++i])); // reg
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // imm
+                buf.append(", #");
+                buf.append(bytecode[++i]); // addr
+                break;
+                
+            case 0x30:
+            case 0x31:
+            case 0x32:
+                switch (bytecode[i] - 0x30) {
+                    case 0: buf.append("addn "); break;
+                    case 1: buf.append("subn "); break;
+                    case 2: buf.append("setn "); break;
+                }
+                
+                buf.append(formatNumReg(bytecode[++i])); // dst
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // k
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // n1
+                buf.append(", ");
+                buf.append(formatNumReg(bytecode[++i])); // n2
+                break;
+                
+            default:
+                buf.append("<Unkown opcode>");
+                break;
+        }
+        return i;
+    }
+    
 }
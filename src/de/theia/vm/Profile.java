@@ -0,0 +1,80 @@
+package de.theia.vm;
+
+import java.util.Arrays;
+
+/**
+ * Execution counts of a program recorded by the {@link VM} (see
+ * {@link VM#setProfile(Profile)}): how often the instruction at every
+ * address was executed and how often a branch instruction jumped. Counts
+ * accumulate over all runs until {@link #clear()} is called.
+ *
+ * @author maximilianstrauch
+ */
+public class Profile {
+
+    /**
+     * Executions and taken branches by the address of the instruction
+     */
+    final long[] counts, taken;
+
+    /**
+     * Creates an empty profile
+     *
+     * @param bytecode The profiled program
+     */
+    public Profile(int[] bytecode) {
+        this.counts = new long[bytecode.length];
+        this.taken = new long[bytecode.length];
+    }
+
+    /**
+     * Returns the length of the profiled program
+     *
+     * @return The number of bytecode ints
+     */
+    public int length() {
+        return counts.length;
+    }
+
+    /**
+     * Returns how often an instruction was executed
+     *
+     * @param pc The address of the instruction
+     * @return The number of executions
+     */
+    public long getCount(int pc) {
+        return counts[pc];
+    }
+
+    /**
+     * Returns how often a branch instruction jumped
+     *
+     * @param pc The address of the instruction
+     * @return The number of jumps; zero for other instructions
+     */
+    public long getTaken(int pc) {
+        return taken[pc];
+    }
+
+    /**
+     * Returns the number of executed instructions
+     *
+     * @return The sum of all counts
+     */
+    public long getTotal() {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        return total;
+    }
+
+    /**
+     * Resets all counts to zero
+     */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(taken, 0);
+    }
+
+}
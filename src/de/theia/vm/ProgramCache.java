@@ -0,0 +1,219 @@
+package de.theia.vm;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of compiled programs. Programs are identified by a SHA-256
+ * hash of their source, the language and the compiler options, so the
+ * source itself isn't kept. If the cache is full the least recently used
+ * program is dropped. Sources which don't compile are not cached.
+ *
+ * The cached bytecode is shared by all callers and must not be modified.
+ *
+ * @author maximilianstrauch
+ */
+public class ProgramCache {
+
+    /**
+     * Maximum number of cached programs
+     */
+    private final int capacity;
+
+    /**
+     * The programs in access order
+     */
+    private final LinkedHashMap<Key, int[]> programs;
+
+    /**
+     * Creates a new cache
+     *
+     * @param capacity The maximum number of cached programs
+     */
+    public ProgramCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.programs = new LinkedHashMap<Key, int[]>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+                return size() > ProgramCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the bytecode of a program, compiling it if it isn't cached
+     *
+     * @param source The source code
+     * @param language The language of the source
+     * @param fusion See {@link Compiler#setFusion(boolean)}
+     * @param summarization See {@link Compiler#setSummarization(boolean)}
+     * @return The bytecode
+     * @throws RecognitionException If the source can't be compiled
+     */
+    public int[] compile(String source, Language language, boolean fusion,
+            boolean summarization) throws RecognitionException {
+        return compile(source, null, language, fusion, summarization);
+    }
+
+    /**
+     * Returns the bytecode of a program, compiling it from its tokens if it
+     * isn't cached
+     *
+     * @param tokens The tokens of the source code
+     * @param language The language of the source
+     * @param fusion See {@link Compiler#setFusion(boolean)}
+     * @param summarization See {@link Compiler#setSummarization(boolean)}
+     * @return The bytecode
+     * @throws RecognitionException If the source can't be compiled
+     * @throws java.util.concurrent.CancellationException If the compiling
+     * thread is interrupted
+     */
+    public int[] compile(TokenStream tokens, Language language, boolean fusion,
+            boolean summarization) throws RecognitionException {
+        return compile(tokens.getText(), tokens, language, fusion,
+                summarization);
+    }
+
+    /**
+     * Returns the bytecode of a program, compiling it if it isn't cached
+     *
+     * @param source The source code
+     * @param tokens The tokens of the source or <code>null</code> to
+     * tokenize it if needed
+     * @param language The language of the source
+     * @param fusion See {@link Compiler#setFusion(boolean)}
+     * @param summarization See {@link Compiler#setSummarization(boolean)}
+     * @return The bytecode
+     */
+    private int[] compile(CharSequence source, TokenStream tokens,
+            Language language, boolean fusion, boolean summarization) {
+        Key key = new Key(hash(source), language, fusion, summarization);
+        synchronized (programs) {
+            int[] bytecode = programs.get(key);
+            if (bytecode != null) {
+                return bytecode;
+            }
+        }
+
+        // Compile outside the lock, a program compiled twice doesn't hurt
+        Compiler c = new Compiler(tokens != null ?
+                new Lexer(tokens) : new Lexer(source), language);
+        c.setFusion(fusion);
+        c.setSummarization(summarization);
+        int[] bytecode = c.compile();
+
+        synchronized (programs) {
+            programs.put(key, bytecode);
+        }
+        return bytecode;
+    }
+
+    /**
+     * Returns the number of cached programs
+     *
+     * @return The number of programs
+     */
+    public int size() {
+        synchronized (programs) {
+            return programs.size();
+        }
+    }
+
+    /**
+     * Drops all cached programs
+     */
+    public void clear() {
+        synchronized (programs) {
+            programs.clear();
+        }
+    }
+
+    /**
+     * Number of characters hashed at once
+     */
+    private static final int HASH_CHUNK = 8192;
+
+    /**
+     * Computes the SHA-256 hash of the UTF-8 encoded source. The source is
+     * hashed in pieces, so a large mapped source isn't copied into the heap
+     *
+     * @param source The source code
+     * @return The hash
+     */
+    static byte[] hash(CharSequence source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        if (source instanceof ByteSource) {
+            ((ByteSource) source).update(digest);
+            return digest.digest();
+        }
+        int length = source.length();
+        for (int start = 0; start < length; ) {
+            int end = Math.min(start + HASH_CHUNK, length);
+            if (end < length && Character.isHighSurrogate(
+                    source.charAt(end - 1))) {
+                // Don't split a surrogate pair
+                end--;
+            }
+            digest.update(source.subSequence(start, end).toString()
+                    .getBytes(StandardCharsets.UTF_8));
+            start = end;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Identifies a compiled program
+     */
+    private static final class Key {
+
+        private final byte[] hash;
+
+        private final Language language;
+
+        private final boolean fusion, summarization;
+
+        Key(byte[] hash, Language language, boolean fusion,
+                boolean summarization) {
+            this.hash = hash;
+            this.language = language;
+            this.fusion = fusion;
+            this.summarization = summarization;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return Arrays.equals(hash, k.hash) && language == k.language
+                    && fusion == k.fusion && summarization == k.summarization;
+        }
+
+        @Override
+        public int hashCode() {
+            // The hash bytes are already well distributed
+            return ((hash[0] & 0xff) << 24 | (hash[1] & 0xff) << 16
+                    | (hash[2] & 0xff) << 8 | (hash[3] & 0xff))
+                    ^ language.ordinal() << 2
+                    ^ (fusion ? 2 : 0) ^ (summarization ? 1 : 0);
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package de.theia.vm;
+
+/**
+ * A snapshot of a running program, see
+ * {@link VM#setProgressListener(ProgressListener, long)}
+ *
+ * @author maximilianstrauch
+ */
+public class Progress {
+
+    /**
+     * Number of executed instructions
+     */
+    private final long steps;
+
+    /**
+     * Address of the next instruction
+     */
+    private final int pc;
+
+    /**
+     * Copy of the registers
+     */
+    private final Register register;
+
+    Progress(long steps, int pc, Register register) {
+        this.steps = steps;
+        this.pc = pc;
+        this.register = register;
+    }
+
+    /**
+     * Returns the number of instructions executed so far
+     *
+     * @return The number of instructions
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Returns the address of the next instruction
+     *
+     * @return The address or <code>-1</code> for a compiled program
+     */
+    public int getPc() {
+        return pc;
+    }
+
+    /**
+     * Returns a copy of the registers. A compiled program writes its
+     * registers back only when it ends, so they show the initial values
+     *
+     * @return The registers
+     */
+    public Register getRegister() {
+        return register;
+    }
+
+}
@@ -0,0 +1,19 @@
+package de.theia.vm;
+
+/**
+ * Receives snapshots of a running program, see
+ * {@link VM#setProgressListener(ProgressListener, long)}
+ *
+ * @author maximilianstrauch
+ */
+public interface ProgressListener {
+
+    /**
+     * Called by the thread running the program. Must return quickly since
+     * the program waits meanwhile
+     *
+     * @param progress The snapshot
+     */
+    void progress(Progress progress);
+
+}
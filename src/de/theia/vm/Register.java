@@ -1,147 +1,356 @@
 package de.theia.vm;
 
-import de.theia.gui.Theia;
+import java.math.BigInteger;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.ResourceBundle;
-import java.util.Set;
-import javax.swing.table.AbstractTableModel;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Represents the registers of the register machine
- * 
+ * Represents the registers of the register machine. This is the storage
+ * used by the {@link VM}; it does not notify anybody about changes. Views
+ * have to poll it (e.g. using {@link #getRegisters()} and {@link #peek(int)})
+ *
+ * Every VM works on its own register file. A register file must only be
+ * modified by one thread at a time, so VMs running concurrently need
+ * separate register files (see {@link #Register(Register)} to start many
+ * programs from the same initial state)
+ *
+ * The registers hold 64 bit values; the int methods used in
+ * {@link NumericMode#INT32} only see the lower 32 bits. In
+ * {@link NumericMode#ARBITRARY} a register exceeding 64 bits is moved to
+ * a separate map of big values.
+ *
  * @author maximilianstrauch
  */
-public class Register extends AbstractTableModel {
+public class Register {
 
-    private static final Register THIS = new Register();
-    
     /**
-     * A hash map is used to store the register value associations
+     * Registers below this number are stored in the dense array, all
+     * others in the sparse map
      */
-    private final Map<Integer, Integer> memory;
-    
+    private static final int DENSE_LIMIT = 1 << 16;
+
+    /**
+     * The values of the low registers indexed by the register number
+     */
+    private long[] dense;
+
+    /**
+     * Marks the low registers which were already used
+     */
+    private boolean[] used;
+
+    /**
+     * Maps the registers above {@link #DENSE_LIMIT} to their index in
+     * {@link #sparseValues}
+     */
+    private final IntIntMap sparse;
+
+    /**
+     * The values of the registers above {@link #DENSE_LIMIT}
+     */
+    private long[] sparseValues;
+
     /**
-     * A list of keys of the hash map
+     * Number of used low registers
      */
-    private Integer[] keys;
-    
-    private Register() {
-        memory = new HashMap<>();
+    private int denseSize;
+
+    /**
+     * The registers exceeding 64 bits. Their entries in the arrays above
+     * are meaningless
+     */
+    private final Map<Integer, BigInteger> big;
+
+    /**
+     * Set if the map of big values was used since the last clear
+     */
+    private boolean hasBig;
+
+    /**
+     * Creates an empty register file
+     */
+    public Register() {
+        dense = new long[16];
+        used = new boolean[16];
+        sparse = new IntIntMap(16);
+        sparseValues = new long[16];
+        big = new ConcurrentHashMap<>();
     }
-    
+
     /**
-     * Updates the ordered list of register keys
+     * Creates a copy of a register file
+     *
+     * @param initial The register file to copy
      */
-    private void updateKeyList() {
-        Set<Integer> s = memory.keySet();
-        keys = new Integer[s.size()];
-        s.toArray(keys);
-        Arrays.sort(keys);
+    public Register(Register initial) {
+        this();
+        reset(initial);
     }
-    
+
     /**
-     * Updates the JTable view
+     * Resets all registers to the state of another register file
+     *
+     * @param initial The register file to copy. Must not be modified
+     * during the call
      */
-    private void fireContentsChanged() {
-        updateKeyList();
-        fireTableDataChanged();
+    public void reset(Register initial) {
+        if (initial == this) {
+            return;
+        }
+        dense = initial.dense.clone();
+        used = initial.used.clone();
+        denseSize = initial.denseSize;
+        sparse.clear();
+        for (int reg : initial.sparse.keys()) {
+            setLong(reg, initial.peekLong(reg));
+        }
+        big.clear();
+        big.putAll(initial.big);
+        hasBig = !big.isEmpty();
     }
 
     /**
      * Clears all registers
      */
     public void clear() {
-        updateKeyList();
-        memory.clear();
-        fireContentsChanged();
+        Arrays.fill(dense, 0);
+        Arrays.fill(used, false);
+        denseSize = 0;
+        sparse.clear();
+        big.clear();
+        hasBig = false;
+    }
+
+    /**
+     * Grows the dense array to hold the given register
+     *
+     * @param register The register number (below {@link #DENSE_LIMIT})
+     */
+    private void grow(int register) {
+        int len = dense.length;
+        while (len <= register) {
+            len <<= 1;
+        }
+        dense = Arrays.copyOf(dense, len);
+        used = Arrays.copyOf(used, len);
     }
-    
+
+    /**
+     * Marks a low register as used
+     *
+     * @param register The register number
+     */
+    private void touch(int register) {
+        used[register] = true;
+        denseSize++;
+    }
+
     /**
      * Returns the value for a register or zero if not set yet
-     * 
+     *
      * @param register The register
-     * @return The value of the register
+     * @return The lower 32 bits of the register
      */
     public int getValue(int register) {
-        if (!memory.containsKey(register)) {
-            setValue(register, 0);
+        if (register >= 0 && register < dense.length) {
+            if (!used[register]) {
+                touch(register);
+            }
+            return (int) dense[register];
         }
-        return memory.get(register);
+        return (int) getLong(register);
     }
-    
+
     /**
      * Sets a register value
-     * 
+     *
      * @param register Number of the register
      * @param value Value to set
      */
     public void setValue(int register, int value) {
-        memory.put(register, value);
-        fireContentsChanged();
-    }
-    
-//    public String print() {
-//        StringBuilder buf = new StringBuilder();
-//        buf.append(memory.toString());
-//        return buf.toString();
-//    }
-    
-    @Override
-    public String getColumnName(int column) {
-        ResourceBundle res = Theia.getInstance().getMessages();
-        return res.getString("registerCol" + column);
-    }
-    
-    @Override
-    public int getRowCount() {
-        return memory.size();
-    }
-
-    @Override
-    public int getColumnCount() {
-        return 2;
-    }
-
-    @Override
-    public Object getValueAt(int rowIndex, int columnIndex) {
-        if (keys.length <= rowIndex) {
-            updateKeyList();
+        setLong(register, value);
+    }
+
+    /**
+     * Returns the value for a register or zero if not set yet
+     *
+     * @param register The register
+     * @return The lower 64 bits of the register
+     */
+    public long getLong(int register) {
+        if (register >= 0 && register < DENSE_LIMIT) {
+            if (register >= dense.length) {
+                grow(register);
+            }
+            if (!used[register]) {
+                touch(register);
+            }
+            return dense[register];
         }
-        
-        if (columnIndex == 0) {
-            return "x" + keys[rowIndex];
-        } else {
-            return getValue(keys[rowIndex]);
+
+        if (!sparse.containsKey(register)) {
+            setLong(register, 0);
         }
+        return sparseValues[sparse.get(register, 0)];
     }
 
-    @Override
-    public Class<?> getColumnClass(int columnIndex) {
-        if (columnIndex == 0) {
-            return String.class;
+    /**
+     * Sets a register value
+     *
+     * @param register Number of the register
+     * @param value Value to set
+     */
+    public void setLong(int register, long value) {
+        if (register >= 0 && register < DENSE_LIMIT) {
+            if (register >= dense.length) {
+                grow(register);
+            }
+            dense[register] = value;
+            if (!used[register]) {
+                used[register] = true;
+                denseSize++;
+            }
         } else {
-            return Integer.class;
+            int i = sparse.get(register, -1);
+            if (i < 0) {
+                i = sparse.size();
+                if (i == sparseValues.length) {
+                    sparseValues = Arrays.copyOf(sparseValues, i << 1);
+                }
+                sparse.put(register, i);
+            }
+            sparseValues[i] = value;
+        }
+        if (hasBig) {
+            big.remove(register);
+        }
+    }
+
+    /**
+     * Tests if a register exceeds 64 bits
+     *
+     * @param register The register
+     * @return <code>true</code> if the value is only available using
+     * {@link #getBig(int)}
+     */
+    public boolean isBig(int register) {
+        return hasBig && big.containsKey(register);
+    }
+
+    /**
+     * Returns the value for a register or zero if not set yet
+     *
+     * @param register The register
+     * @return The value of the register
+     */
+    public BigInteger getBig(int register) {
+        long v = getLong(register);
+        if (hasBig) {
+            BigInteger b = big.get(register);
+            if (b != null) {
+                return b;
+            }
+        }
+        return BigInteger.valueOf(v);
+    }
+
+    /**
+     * Sets a register value
+     *
+     * @param register Number of the register
+     * @param value Value to set
+     */
+    public void setBig(int register, BigInteger value) {
+        setLong(register, value.longValue());
+        if (value.bitLength() > 63) {
+            big.put(register, value);
+            hasBig = true;
         }
     }
 
-    @Override
-    public boolean isCellEditable(int rowIndex, int columnIndex) {
-        return columnIndex == 1;
+    /**
+     * Returns the value of a register without marking it as used. This
+     * method never fails, even if the VM modifies the registers concurrently
+     *
+     * @param register The register
+     * @return The lower 32 bits of the register or zero if not set
+     */
+    public int peek(int register) {
+        long[] d = dense;
+        if (register >= 0 && register < d.length) {
+            return (int) d[register];
+        }
+        return (int) peekLong(register);
     }
 
-    @Override
-    public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
-        try {
-            setValue(keys[rowIndex], Integer.parseInt(String.valueOf(aValue)));
-        } catch (Exception e) {
-            setValue(keys[rowIndex], 0);
+    /**
+     * Returns the value of a register without marking it as used
+     *
+     * @param register The register
+     * @return The lower 64 bits of the register or zero if not set
+     * @see #peek(int)
+     */
+    public long peekLong(int register) {
+        long[] d = dense;
+        if (register >= 0 && register < d.length) {
+            return d[register];
         }
+        long[] v = sparseValues;
+        int i = sparse.get(register, -1);
+        return i < 0 || i >= v.length ? 0 : v[i];
+    }
+
+    /**
+     * Returns the value of a register without marking it as used
+     *
+     * @param register The register
+     * @return The value of the register or zero if not set
+     * @see #peek(int)
+     */
+    public BigInteger peekBig(int register) {
+        BigInteger b = big.get(register);
+        return b != null ? b : BigInteger.valueOf(peekLong(register));
     }
-    
-    public static final Register getInstance() {
-        return THIS;
+
+    /**
+     * Returns the number of used registers
+     *
+     * @return The number of used registers
+     */
+    public int size() {
+        return denseSize + sparse.size();
+    }
+
+    /**
+     * Returns the numbers of all used registers in ascending order. If the
+     * VM modifies the registers concurrently the result reflects some state
+     * during the call
+     *
+     * @return The register numbers
+     */
+    public int[] getRegisters() {
+        boolean[] u = used;
+        int n = 0;
+        for (boolean b : u) {
+            if (b) {
+                n++;
+            }
+        }
+
+        int[] high = sparse.keys();
+        int[] regs = new int[n + high.length];
+        int k = 0;
+        for (int i = 0; i < u.length && k < n; i++) {
+            if (u[i]) {
+                regs[k++] = i;
+            }
+        }
+
+        Arrays.sort(high);
+        System.arraycopy(high, 0, regs, k, high.length);
+        return k + high.length == regs.length ?
+                regs : Arrays.copyOf(regs, k + high.length);
     }
-    
+
 }
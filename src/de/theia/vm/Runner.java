@@ -0,0 +1,500 @@
+package de.theia.vm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Command line runner which compiles and executes a program without the
+ * GUI. Only uses the classes of this package, so no AWT or Swing classes
+ * are loaded.
+ *
+ * <pre>
+ *   java -cp theia.jar de.theia.vm.Runner [options] program [xN=value ...]
+ * </pre>
+ *
+ * The program is a source file or a bytecode file written with
+ * <code>-c</code> (see {@link BytecodeFile}). The exit status tells how
+ * the run ended, see the <code>EXIT_*</code> constants.
+ *
+ * @author maximilianstrauch
+ */
+public class Runner {
+
+    /**
+     * The program ran to its end
+     */
+    public static final int EXIT_OK = 0;
+
+    /**
+     * The program can't be compiled
+     */
+    public static final int EXIT_COMPILE_ERROR = 1;
+
+    /**
+     * The VM stopped the program with an error, e.g. an overflow
+     */
+    public static final int EXIT_RUNTIME_ERROR = 2;
+
+    /**
+     * The program exceeded the instruction or time limit
+     */
+    public static final int EXIT_BUDGET_EXHAUSTED = 3;
+
+    /**
+     * Invalid command line arguments
+     */
+    public static final int EXIT_USAGE = 64;
+
+    /**
+     * A file can't be read or written
+     */
+    public static final int EXIT_IO_ERROR = 74;
+
+    private static final String USAGE =
+            "Usage: Runner [options] program [xN=value ...]\n"
+            + "\n"
+            + "Compiles and runs a LOOP, WHILE or GOTO program. The registers\n"
+            + "xN=value are set before the program starts.\n"
+            + "\n"
+            + "Options:\n"
+            + "  -l lang     Language LOOP, WHILE or GOTO (default: by the file\n"
+            + "              extension .loop, .while or .goto)\n"
+            + "  -i file     Reads initial registers xN=value from a file\n"
+            + "  -e mode     Execution mode INTERPRETED, DECODED or COMPILED\n"
+            + "              (default: COMPILED)\n"
+            + "  -n mode     Numeric mode INT32, INT64 or ARBITRARY\n"
+            + "              (default: INT32)\n"
+            + "  -O          Fuses and summarizes instructions\n"
+            + "  -s steps    Stops after this number of instructions\n"
+            + "  -t millis   Stops after this time\n"
+            + "  -r list     Prints these registers, e.g. 0,1 (default: all\n"
+            + "              used registers)\n"
+            + "  -q          Prints the values only\n"
+            + "  -v          Prints the compile and run metrics to stderr\n"
+            + "  -j          Publishes the metrics by JMX as\n"
+            + "              " + Metrics.OBJECT_NAME + "\n"
+            + "  -p          Prints the bytecode instead of running it\n"
+            + "  -c file     Writes the bytecode to a file instead of running it\n"
+            + "\n"
+            + "Exit status: 0 finished, 1 compile error, 2 runtime error,\n"
+            + "3 limit exceeded, 64 invalid arguments, 74 I/O error\n";
+
+    /**
+     * Thrown for invalid command line arguments
+     */
+    private static class UsageException extends Exception {
+
+        UsageException(String message) {
+            super(message);
+        }
+
+    }
+
+    // Options
+    private Path program, bytecodeOut;
+    private Language language;
+    private ExecutionMode executionMode = ExecutionMode.COMPILED;
+    private NumericMode numericMode = NumericMode.INT32;
+    private boolean optimize, quiet, verbose, print, help;
+    private long maxSteps = Long.MAX_VALUE, timeLimit;
+    private int[] printed;
+    private final Register register = new Register();
+
+    private final PrintStream out, err;
+
+    private Runner(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Runs the command line runner
+     *
+     * @param args The command line arguments
+     * @param out Receives the results
+     * @param err Receives the error messages
+     * @return The exit status
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        Runner r = new Runner(out, err);
+        try {
+            r.parse(args);
+        } catch (UsageException e) {
+            return usage(err, e);
+        } catch (IOException e) {
+            err.println("Can't read registers: " + (e instanceof
+                    NoSuchFileException ? "No such file " : "")
+                    + e.getMessage());
+            return EXIT_IO_ERROR;
+        }
+
+        if (r.help) {
+            out.print(USAGE);
+            return EXIT_OK;
+        }
+        try {
+            return r.run();
+        } catch (UsageException e) {
+            return usage(err, e);
+        } catch (IOException e) {
+            err.println(r.program + ": " + (e instanceof NoSuchFileException
+                    ? "No such file" : e.getMessage()));
+            return EXIT_IO_ERROR;
+        }
+    }
+
+    /**
+     * Reports invalid arguments
+     *
+     * @param err Receives the error message and the usage
+     * @param e The error
+     * @return The exit status
+     */
+    private static int usage(PrintStream err, UsageException e) {
+        err.println(e.getMessage());
+        err.println();
+        err.print(USAGE);
+        return EXIT_USAGE;
+    }
+
+    /**
+     * Parses the command line arguments
+     *
+     * @param args The arguments
+     * @throws UsageException If the arguments are invalid
+     * @throws IOException If the register file can't be read
+     */
+    private void parse(String[] args) throws UsageException, IOException {
+        StringBuilder regs = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            String opt = args[i];
+            if (!opt.startsWith("-")) {
+                if (program == null) {
+                    program = Paths.get(opt);
+                } else {
+                    regs.append(opt).append('\n');
+                }
+                continue;
+            }
+
+            switch (opt) {
+                case "-O": optimize = true; continue;
+                case "-q": quiet = true; continue;
+                case "-v": verbose = true; continue;
+                case "-j": Metrics.register(); continue;
+                case "-p": print = true; continue;
+                case "-h":
+                case "--help":
+                    help = true;
+                    return;
+            }
+
+            if (i + 1 == args.length) {
+                throw new UsageException("Missing value of " + opt);
+            }
+            String value = args[++i];
+            switch (opt) {
+                case "-l":
+                    language = valueOf(Language.class, opt, value);
+                    break;
+                case "-i":
+                    parseRegisters(new String(Files.readAllBytes(
+                            Paths.get(value)), StandardCharsets.UTF_8));
+                    break;
+                case "-e":
+                    executionMode = valueOf(ExecutionMode.class, opt, value);
+                    break;
+                case "-n":
+                    numericMode = valueOf(NumericMode.class, opt, value);
+                    break;
+                case "-s":
+                    maxSteps = parseLong(opt, value);
+                    break;
+                case "-t":
+                    timeLimit = parseLong(opt, value);
+                    break;
+                case "-r":
+                    String[] list = value.split(",");
+                    printed = new int[list.length];
+                    for (int k = 0; k < list.length; k++) {
+                        printed[k] = parseRegister(opt,
+                                list[k].trim().replaceFirst("^[xX]", ""));
+                    }
+                    break;
+                case "-c":
+                    bytecodeOut = Paths.get(value);
+                    break;
+                default:
+                    throw new UsageException("Unknown option " + opt);
+            }
+        }
+
+        if (program == null) {
+            throw new UsageException("No program given");
+        }
+        parseRegisters(regs.toString());
+    }
+
+    /**
+     * Parses register assignments <code>xN=value</code>, separated by white
+     * space, commas or semicolons. Text after a <code>#</code> is ignored
+     *
+     * @param text The assignments
+     * @throws UsageException If an assignment is invalid
+     */
+    private void parseRegisters(String text) throws UsageException {
+        String s = text.replaceAll("#[^\n]*", "").replaceAll("\\s*=\\s*", "=");
+        for (String a : s.split("[\\s,;]+")) {
+            if (a.isEmpty()) {
+                continue;
+            }
+            int eq = a.indexOf('=');
+            if (eq < 2 || Character.toLowerCase(a.charAt(0)) != 'x') {
+                throw new UsageException("Invalid register assignment " + a);
+            }
+            int reg = parseRegister(a, a.substring(1, eq));
+            BigInteger value;
+            try {
+                value = new BigInteger(a.substring(eq + 1));
+            } catch (NumberFormatException e) {
+                throw new UsageException("Invalid register assignment " + a);
+            }
+            if (value.signum() < 0) {
+                throw new UsageException("Negative register value " + a);
+            }
+            register.setBig(reg, value);
+        }
+    }
+
+    /**
+     * Parses a non-negative number argument
+     *
+     * @param opt The option or text the number belongs to
+     * @param value The number
+     * @return The number
+     * @throws UsageException If the number is invalid
+     */
+    private static long parseLong(String opt, String value)
+            throws UsageException {
+        try {
+            long v = Long.parseLong(value);
+            if (v >= 0) {
+                return v;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new UsageException("Invalid number for " + opt + ": " + value);
+    }
+
+    /**
+     * Parses a register number
+     *
+     * @param opt The option or text the number belongs to
+     * @param value The number without the leading x
+     * @return The register number
+     * @throws UsageException If the number is invalid
+     */
+    private static int parseRegister(String opt, String value)
+            throws UsageException {
+        long reg = parseLong(opt, value);
+        if (reg > Integer.MAX_VALUE) {
+            throw new UsageException("Invalid register for " + opt + ": x"
+                    + value);
+        }
+        return (int) reg;
+    }
+
+    /**
+     * Parses the name of an enumeration constant ignoring the case
+     *
+     * @param type The enumeration
+     * @param opt The option
+     * @param value The name
+     * @return The constant
+     * @throws UsageException If there is no such constant
+     */
+    private static <E extends Enum<E>> E valueOf(Class<E> type, String opt,
+            String value) throws UsageException {
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new UsageException("Invalid value for " + opt + ": " + value);
+        }
+    }
+
+    /**
+     * Compiles or loads and runs the program
+     *
+     * @return The exit status
+     * @throws UsageException If a bytecode file should be compiled
+     * @throws IOException If a file can't be read or written
+     */
+    private int run() throws UsageException, IOException {
+        long time = System.nanoTime();
+        int[] bytecode;
+        if (isBytecodeFile(program)) {
+            if (bytecodeOut != null) {
+                throw new UsageException(program
+                        + " is already compiled, -c needs a source file");
+            }
+            bytecode = BytecodeFile.load(program).getBytecode();
+        } else {
+            bytecode = compile();
+            if (bytecode == null) {
+                return EXIT_COMPILE_ERROR;
+            }
+        }
+        if (verbose) {
+            err.printf("Loaded in %d ms%n", (System.nanoTime() - time) / 1000000);
+        }
+
+        if (print) {
+            PrettyPrint.print(bytecode, out);
+            return EXIT_OK;
+        }
+        if (bytecodeOut != null) {
+            return EXIT_OK;
+        }
+
+        // Check the initial registers against the number range
+        BigInteger max = BigInteger.valueOf(numericMode == NumericMode.INT32
+                ? Integer.MAX_VALUE : Long.MAX_VALUE);
+        for (int reg : register.getRegisters()) {
+            if (numericMode != NumericMode.ARBITRARY
+                    && register.getBig(reg).compareTo(max) > 0) {
+                err.println("Value of x" + reg + " exceeds " + numericMode);
+                return EXIT_USAGE;
+            }
+        }
+
+        VM vm = new VM(bytecode, register);
+        vm.setExecutionMode(executionMode);
+        vm.setNumericMode(numericMode);
+        vm.setMaxSteps(maxSteps);
+        vm.setTimeLimit(timeLimit);
+
+        ExitStatus status;
+        try {
+            status = vm.execute();
+        } catch (VMException e) {
+            err.println("Runtime error: " + e.getMessage());
+            return EXIT_RUNTIME_ERROR;
+        }
+        if (verbose) {
+            long nanos = vm.getRunNanos();
+            err.printf("Executed %d instructions in %.3f ms (%.0f per second)%n",
+                    vm.getSteps(), nanos / 1e6,
+                    nanos > 0 ? vm.getSteps() * 1e9 / nanos : 0.0);
+            err.printf("Stack depth %d, %d registers used%n",
+                    vm.getMaxStackDepth(), register.size());
+        }
+
+        printRegisters();
+        if (status == ExitStatus.BUDGET_EXHAUSTED) {
+            err.println("Limit exceeded after " + vm.getSteps() + " steps");
+            return EXIT_BUDGET_EXHAUSTED;
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Compiles the program and writes the bytecode file if requested
+     *
+     * @return The bytecode or <code>null</code> if the program can't be
+     * compiled
+     * @throws IOException If a file can't be read or written
+     */
+    private int[] compile() throws IOException {
+        Language lang = language;
+        if (lang == null) {
+            String name = program.getFileName().toString();
+            String ext = name.substring(name.lastIndexOf('.') + 1);
+            try {
+                lang = Language.valueOf(ext.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                err.println(program + ": Unknown language, use -l");
+                return null;
+            }
+        }
+
+        ByteSource source = ByteSource.map(program);
+        TokenStream tokens = TokenStream.stream(source);
+        Compiler c = new Compiler(new Lexer(tokens), lang);
+        c.setFusion(optimize);
+        c.setSummarization(optimize);
+
+        int[] bytecode;
+        try {
+            bytecode = c.compile();
+            if (verbose) {
+                err.printf("Compiled in %.3f ms (lex %.3f, parse %.3f, "
+                        + "relocate %.3f)%n", (c.getLexNanos()
+                        + c.getParseNanos() + c.getRelocateNanos()) / 1e6,
+                        c.getLexNanos() / 1e6, c.getParseNanos() / 1e6,
+                        c.getRelocateNanos() / 1e6);
+            }
+        } catch (RecognitionException e) {
+            int line = e.getLine(), pos = e.getPos();
+            if (!e.hasLineInfo()) {
+                line = tokens.lineOf(e.getStart()) + 1;
+                pos = tokens.columnOf(e.getStart());
+            }
+            err.println(program + ":" + line + ":" + pos + ": "
+                    + e.getMessage());
+            return null;
+        }
+
+        if (bytecodeOut != null) {
+            new BytecodeFile(bytecode, lang, source).write(bytecodeOut);
+        }
+        return bytecode;
+    }
+
+    /**
+     * Prints the requested registers
+     */
+    private void printRegisters() {
+        int[] regs = printed != null ? printed : register.getRegisters();
+        for (int reg : regs) {
+            String value = numericMode == NumericMode.INT32
+                    ? String.valueOf(register.getValue(reg))
+                    : register.getBig(reg).toString();
+            out.println(quiet ? value : "x" + reg + " = " + value);
+        }
+    }
+
+    /**
+     * Tests if a file starts with the {@link BytecodeFile#MAGIC}
+     *
+     * @param file The file
+     * @return <code>true</code> if the file is a bytecode file
+     * @throws IOException If the file can't be read
+     */
+    private static boolean isBytecodeFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // Read the first four bytes
+            }
+            return !magic.hasRemaining()
+                    && magic.getInt(0) == BytecodeFile.MAGIC;
+        }
+    }
+
+}
@@ -29,6 +29,7 @@ public enum Token {
     // Symbols
     VAR,
     NUM,
-    EOF;
+    EOF,
+    ERROR; // text which can't be recognized (see TokenStream)
     
 }
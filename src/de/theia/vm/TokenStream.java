@@ -0,0 +1,536 @@
+package de.theia.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static de.theia.vm.Token.*;
+
+/**
+ * The tokens of a source, produced in a single pass and shared by the
+ * {@link Compiler} (through a {@link Lexer}) and the editor highlighting.
+ *
+ * The tokens are packed into an int array, four ints per token: the kind
+ * ({@link Token#ordinal()}), the offset, the length and the value (the
+ * number of a {@link Token#NUM}, the register index of a {@link Token#VAR}).
+ * Tokenizing never fails: text which can't be recognized becomes an
+ * {@link Token#ERROR} token and the compiler fails when it reaches it. The
+ * last token is always {@link Token#EOF}.
+ *
+ * Lines and columns are only calculated when an error message needs them.
+ *
+ * A stream created by {@link #stream(CharSequence)} scans the source lazily
+ * while a {@link Lexer} reads it and only keeps a window of the latest
+ * tokens, so large sources can be compiled without holding all tokens.
+ *
+ * @author maximilianstrauch
+ */
+public final class TokenStream {
+
+    /**
+     * Ints per token and the positions of the fields
+     */
+    private static final int STRIDE = 4;
+    private static final int KIND = 0, START = 1, LENGTH = 2, VALUE = 3;
+
+    /**
+     * Number of tokens scanned at once by a lazy stream
+     */
+    private static final int WINDOW = 4096;
+
+    /**
+     * All tokens by their ordinal
+     */
+    private static final Token[] KINDS = Token.values();
+
+    /**
+     * The keywords and their tokens
+     */
+    private static final String[] KEYWORDS = {
+        "loop", "do", "end", "while", "if", "then", "else", "goto"
+    };
+    private static final Token[] KEYWORD_TOKENS = {
+        LOOP, DO, END, WHILE, IF, THEN, ELSE, GOTO
+    };
+
+    /**
+     * The source
+     */
+    private final CharSequence text;
+
+    /**
+     * The packed tokens
+     */
+    private int[] tokens;
+
+    /**
+     * Number of tokens in the array
+     */
+    private int size;
+
+    /**
+     * Index of the first token in the array; the tokens before it were
+     * dropped by a lazy stream
+     */
+    private int base;
+
+    /**
+     * Offset where scanning continues or <code>-1</code> if the
+     * {@link Token#EOF} token was scanned
+     */
+    private int offset;
+
+    /**
+     * Indicates if the scanned tokens are kept
+     */
+    private final boolean keep;
+
+    /**
+     * Time spent scanning
+     */
+    private long scanNanos;
+
+    /**
+     * The errors; the value of an error token is its index in this list
+     */
+    private final List<ErrorInfo> errors;
+
+    /**
+     * Line count cache: the number of line breaks before
+     * {@link #lineOffset} and the offset of the last one of them
+     */
+    private int lineOffset, lineCount, lineStart = -1;
+
+    private TokenStream(CharSequence text, boolean keep) {
+        this.text = text;
+        this.keep = keep;
+        this.tokens = new int[STRIDE * (keep
+                ? Math.max(16, text.length() / 8) : WINDOW)];
+        this.errors = new ArrayList<>(0);
+    }
+
+    /**
+     * Tokenizes a source
+     *
+     * @param text The source. Must not be modified afterwards
+     * @return The tokens
+     */
+    public static TokenStream tokenize(CharSequence text) {
+        TokenStream s = new TokenStream(text, true);
+        s.scan(Integer.MAX_VALUE);
+        return s;
+    }
+
+    /**
+     * Creates a lazy stream which scans the tokens of a source on demand.
+     * The tokens must be read in order by {@link #fetch(int)} and only the
+     * latest ones are kept, so {@link #find(int)} isn't supported
+     *
+     * @param text The source. Must not be modified afterwards
+     * @return The tokens
+     */
+    public static TokenStream stream(CharSequence text) {
+        return new TokenStream(text, false);
+    }
+
+    /**
+     * Returns the tokenized source
+     *
+     * @return The source
+     */
+    public CharSequence getText() {
+        return text;
+    }
+
+    /**
+     * Returns the number of tokens
+     *
+     * @return The number of tokens including the final {@link Token#EOF}; the
+     * number of tokens scanned so far for a lazy stream
+     */
+    public int size() {
+        return base + size;
+    }
+
+    /**
+     * Returns the time spent recognizing the tokens so far
+     *
+     * @return The time in nanoseconds
+     */
+    public long getScanNanos() {
+        return scanNanos;
+    }
+
+    /**
+     * Makes sure a token is scanned. Scanning a new window of a lazy stream
+     * drops the tokens before it
+     *
+     * @param i The index of the token; at most one after the last scanned
+     * token
+     */
+    void fetch(int i) {
+        if (i < base + size || offset < 0) {
+            return;
+        }
+        base += size;
+        size = 0;
+        errors.clear();
+        scan(WINDOW);
+    }
+
+    /**
+     * Returns the kind of a token
+     *
+     * @param i The index of the token
+     * @return The kind
+     */
+    public Token getKind(int i) {
+        return KINDS[tokens[(i - base) * STRIDE + KIND]];
+    }
+
+    /**
+     * Returns the offset of a token
+     *
+     * @param i The index of the token
+     * @return Index of the first character of the token
+     */
+    public int getStart(int i) {
+        return tokens[(i - base) * STRIDE + START];
+    }
+
+    /**
+     * Returns the length of a token
+     *
+     * @param i The index of the token
+     * @return Number of characters of the token
+     */
+    public int getLength(int i) {
+        return tokens[(i - base) * STRIDE + LENGTH];
+    }
+
+    /**
+     * Returns the value of a token
+     *
+     * @param i The index of the token
+     * @return The number of a {@link Token#NUM}, the register index of a
+     * {@link Token#VAR} or zero for other tokens
+     */
+    public int getValue(int i) {
+        Token kind = getKind(i);
+        return kind == NUM || kind == VAR ? tokens[(i - base) * STRIDE + VALUE] : 0;
+    }
+
+    /**
+     * Returns the first token ending after an offset
+     *
+     * @param offset The offset
+     * @return The index of the token; the {@link Token#EOF} token if all
+     * tokens end before the offset
+     */
+    public int find(int offset) {
+        if (!keep) {
+            throw new IllegalStateException("Lazy streams can't be searched");
+        }
+        int lo = 0, hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getStart(mid) + getLength(mid) <= offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Creates the exception for an error token
+     *
+     * @param i The index of the {@link Token#ERROR} token
+     * @return The exception describing the error
+     */
+    public RecognitionException getError(int i) {
+        ErrorInfo e = errors.get(tokens[(i - base) * STRIDE + VALUE]);
+        return new RecognitionException(
+                e.message, lineOf(e.from), columnOf(e.from), e.from, e.to
+        );
+    }
+
+    /**
+     * Returns the line of a character. A line break belongs to the line it
+     * starts
+     *
+     * @param index The offset of the character
+     * @return Line starting from zero
+     */
+    public synchronized int lineOf(int index) {
+        scanLines(index);
+        return lineCount;
+    }
+
+    /**
+     * Returns the column of a character
+     *
+     * @param index The offset of the character
+     * @return Character in line starting from one; zero for a line break
+     */
+    public synchronized int columnOf(int index) {
+        scanLines(index);
+        return index - lineStart;
+    }
+
+    /**
+     * Counts the line breaks up to and including a character. Continues
+     * the previous count if possible
+     *
+     * @param index The offset of the character
+     */
+    private void scanLines(int index) {
+        int end = Math.min(index + 1, text.length());
+        if (end < lineOffset) {
+            lineOffset = 0;
+            lineCount = 0;
+            lineStart = -1;
+        }
+        for (int i = lineOffset; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                lineCount++;
+                lineStart = i;
+            }
+        }
+        lineOffset = end;
+    }
+
+    /**
+     * Appends a token
+     *
+     * @param kind The kind
+     * @param start The offset
+     * @param length The length
+     * @param value The value
+     * @return The offset after the token
+     */
+    private int add(Token kind, int start, int length, int value) {
+        int p = size * STRIDE;
+        if (p == tokens.length) {
+            tokens = Arrays.copyOf(tokens, p << 1);
+        }
+        tokens[p + KIND] = kind.ordinal();
+        tokens[p + START] = start;
+        tokens[p + LENGTH] = length;
+        tokens[p + VALUE] = value;
+        size++;
+        return start + length;
+    }
+
+    /**
+     * Appends an error token
+     *
+     * @param message The error message
+     * @param start Offset of the token
+     * @param length Length of the token
+     * @param from Start of the error selection
+     * @param to End of the error selection
+     * @return The offset after the token
+     */
+    private int error(String message, int start, int length, int from, int to) {
+        errors.add(new ErrorInfo(message, from, to));
+        return add(ERROR, start, length, errors.size() - 1);
+    }
+
+    /**
+     * Finds the end of the digits starting at an offset
+     *
+     * @param start Offset of the first digit
+     * @return Offset of the first character after the digits
+     */
+    private int digits(int start) {
+        int i = start, n = text.length();
+        while (i < n && Character.isDigit(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Parses digits
+     *
+     * @param start Offset of the first digit
+     * @param end Offset after the last digit
+     * @return The value or <code>-1</code> if it exceeds
+     * {@link Integer#MAX_VALUE}
+     */
+    private int parse(int start, int end) {
+        long v = 0;
+        for (int i = start; i < end; i++) {
+            v = v * 10 + Character.digit(text.charAt(i), 10);
+            if (v > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) v;
+    }
+
+    /**
+     * Finds the token of a keyword
+     *
+     * @param start Offset of the word
+     * @param end Offset after the word
+     * @return The keyword token or <code>null</code> if the word is no
+     * keyword
+     */
+    private Token keyword(int start, int end) {
+        outer: for (int k = 0; k < KEYWORDS.length; k++) {
+            String kw = KEYWORDS[k];
+            if (kw.length() != end - start) {
+                continue;
+            }
+            for (int i = 0; i < kw.length(); i++) {
+                if (kw.charAt(i) != text.charAt(start + i)) {
+                    continue outer;
+                }
+            }
+            return KEYWORD_TOKENS[k];
+        }
+        return null;
+    }
+
+    /**
+     * Recognizes tokens, continuing at {@link #offset}, and measures the
+     * time
+     *
+     * @param count The number of tokens to add at most
+     */
+    private void scan(int count) {
+        long time = System.nanoTime();
+        try {
+            scanTokens(count);
+        } finally {
+            scanNanos += System.nanoTime() - time;
+        }
+    }
+
+    /**
+     * Recognizes tokens, continuing at {@link #offset}
+     *
+     * @param count The number of tokens to add at most
+     */
+    private void scanTokens(int count) {
+        final CharSequence text = this.text;
+        final int n = text.length();
+        int i = offset;
+
+        while (size < count) {
+            // Skip all whitespace characters
+            while (i < n && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            if (i >= n) {
+                add(EOF, n, 0, 0);
+                offset = -1;
+                return;
+            }
+
+            char c = text.charAt(i);
+            char next = i + 1 < n ? text.charAt(i + 1) : 0;
+            switch (c) {
+
+                case ':': /* Either label separation or assign */
+                    i = next == '=' ? add(ASSIGN, i, 2, 0) : add(COLON, i, 1, 0);
+                    continue;
+
+                case ';': /* Statement sequence separator */
+                    i = add(SEMICOLON, i, 1, 0);
+                    continue;
+
+                case '=': /* Equality test */
+                    i = add(EQU, i, 1, 0);
+                    continue;
+
+                case '+': /* Math operator */
+                    i = add(PLUS, i, 1, 0);
+                    continue;
+
+                case '-': /* Math operator */
+                    i = add(MINUS, i, 1, 0);
+                    continue;
+
+                case '*': /* Math operator */
+                    i = add(MULT, i, 1, 0);
+                    continue;
+
+                case '!': /* The start of the not equals operator */
+                    if (next == '=') {
+                        i = add(NEQ, i, 2, 0);
+                        continue;
+                    }
+                    break;
+
+                case '<': /* Comparison operator */
+                    if (next == '=') {
+                        i = add(LTE, i, 2, 0);
+                        continue;
+                    }
+                    break;
+
+                case 'x': /* A variable */
+                case 'X':
+                    if (i + 1 < n && Character.isDigit(next)) {
+                        int end = digits(i + 1), v = parse(i + 1, end);
+                        i = v < 0
+                                ? error("Number too large", i, end - i, i + 1, end)
+                                : add(VAR, i, end - i, v);
+                    } else {
+                        i = error("Variable expected but found: " +
+                                (i + 1 < n ? String.valueOf(next) : "end of file"),
+                                i, 1, i + 1, i + 2);
+                    }
+                    continue;
+            }
+
+            // Recognize keywords
+            if (Character.isLetter(c)) {
+                int end = i;
+                do {
+                    end++;
+                } while (end < n && Character.isLetter(text.charAt(end)));
+
+                Token kw = keyword(i, end);
+                i = kw != null ? add(kw, i, end - i, 0) : error(
+                        "Unkown keyword: '" + text.subSequence(i, end) + "'",
+                        i, end - i, i, end
+                );
+                continue;
+            }
+
+            // Recognize numbers
+            if (Character.isDigit(c)) {
+                int end = digits(i), v = parse(i, end);
+                i = v < 0
+                        ? error("Number too large", i, end - i, i, end)
+                        : add(NUM, i, end - i, v);
+                continue;
+            }
+
+            i = error("Unkown character: '" + c + "'", i, 1, i, i + 1);
+        }
+        offset = i;
+    }
+
+    /**
+     * Describes an error token
+     */
+    private static final class ErrorInfo {
+
+        private final String message;
+
+        private final int from, to;
+
+        ErrorInfo(String message, int from, int to) {
+            this.message = message;
+            this.from = from;
+            this.to = to;
+        }
+
+    }
+
+}
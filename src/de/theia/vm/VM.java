@@ -1,9 +1,10 @@
 package de.theia.vm;
 
-import java.util.Stack;
+import java.util.Arrays;
 
 /**
- * Virtual machine to execute the bytecode generated by {@link Compiler}
+ * Virtual machine to execute the bytecode generated by {@link Compiler}.
+ * Every VM has its own register file, so many VMs can run in parallel
  * 
  * @author maximilianstrauch
  */
@@ -14,6 +15,50 @@ public class VM {
      */
     private final int[] bytecode;
     
+    /**
+     * The program translated by the {@link Decoder} or <code>null</code> if
+     * not decoded yet or if it can't be decoded
+     */
+    private int[] code;
+    
+    /**
+     * The program compiled to a JVM class or <code>null</code> if not
+     * compiled yet
+     */
+    private volatile CompiledProgram compiled;
+    
+    /**
+     * Set if the program can't be decoded or compiled
+     */
+    private boolean decodeFailed, compileFailed;
+    
+    /**
+     * Set if a compiled run ended early; its state is lost, so the program
+     * can't be continued until {@link #reset()}
+     */
+    private boolean abandoned;
+    
+    /**
+     * How the program is executed
+     */
+    private ExecutionMode mode;
+    
+    /**
+     * How values are stored and computed
+     */
+    private NumericMode numericMode;
+    
+    /**
+     * Interprets the program in the 64 bit and arbitrary precision modes or
+     * <code>null</code> if not used yet
+     */
+    private WideInterpreter wide;
+    
+    /**
+     * Receives the execution counts or <code>null</code> if profiling is off
+     */
+    private Profile profile;
+    
     /**
      * The program counter
      */
@@ -27,30 +72,324 @@ public class VM {
     /**
      * The VM's stack
      */
-    private final Stack<Integer> stack;
+    private int[] stack;
+    
+    /**
+     * The stack pointer: index of the next free stack slot
+     */
+    private int sp;
     
     /**
      * Status indicators
      */
-    private boolean isRunning, isDone;
+    private volatile boolean isRunning, isDone;
+    
+    /**
+     * Limits the execution and receives stop requests
+     */
+    private final Budget budget;
     
     /**
-     * Creates a new VM instance
+     * Number of instructions executed since the VM was created or reset
+     */
+    private long steps;
+    
+    /**
+     * Run time since the VM was created or reset
+     */
+    private long runNanos;
+    
+    /**
+     * Maximum depth of the stack or <code>-1</code> if not computed yet
+     */
+    private int maxStackDepth = -1;
+    
+    /**
+     * Why the last execution ended
+     */
+    private ExitStatus status;
+    
+    /**
+     * Creates a new VM instance with empty registers
      * 
      * @param bytecode The "program" to run
      */
     public VM(int[] bytecode) {
+        this(bytecode, new Register());
+    }
+    
+    /**
+     * Creates a new VM instance working on the given registers
+     * 
+     * @param bytecode The "program" to run
+     * @param register The register file used by this VM. It must not be
+     * used by another VM at the same time
+     */
+    public VM(int[] bytecode, Register register) {
         this.bytecode = bytecode;
-        this.register = Register.getInstance();
-        this.stack = new Stack<>();
+        this.register = register;
+        this.stack = new int[16];
+        this.sp = 0;
         this.pc = 0;
-        this.stack.clear();
         this.isRunning = false;
         this.isDone = false;
+        this.mode = ExecutionMode.DECODED;
+        this.numericMode = NumericMode.INT32;
+        this.budget = new Budget();
+        this.status = ExitStatus.FINISHED;
+    }
+    
+    /**
+     * Creates a VM running the same program as another VM. The decoded or 
+     * compiled program of the other VM is reused
+     * 
+     * @param template The VM to copy the program from
+     * @param register The register file used by this VM
+     */
+    VM(VM template, Register register) {
+        this(template.bytecode, register);
+        this.mode = template.prepare();
+        this.numericMode = template.numericMode;
+        this.maxStackDepth = template.getMaxStackDepth();
+        this.code = template.code;
+        this.decodeFailed = template.decodeFailed;
+        this.compileFailed = template.compileFailed;
+        CompiledProgram c = template.compiled;
+        if (c != null) {
+            this.compiled = c.copy();
+            this.compileFailed = compiled == null;
+        }
+    }
+    
+    /**
+     * Returns the register file of this VM
+     * 
+     * @return The registers
+     */
+    public Register getRegister() {
+        return register;
+    }
+    
+    /**
+     * Resets the VM to run the program again. The registers are not changed
+     * (see {@link Register#reset(Register)})
+     */
+    public void reset() {
+        pc = 0;
+        sp = 0;
+        steps = 0;
+        runNanos = 0;
+        isDone = false;
+        status = ExitStatus.FINISHED;
+        budget.reset();
+        wide = null;
+        abandoned = false;
+    }
+    
+    /**
+     * Limits the number of instructions executed by one call of 
+     * {@link #execute()}. The limit is only checked on backward jumps, so
+     * a few more instructions may be executed
+     * 
+     * @param maxSteps The maximum number of instructions or 
+     * {@link Long#MAX_VALUE} for no limit (the default)
+     */
+    public void setMaxSteps(long maxSteps) {
+        budget.setMaxSteps(maxSteps);
+    }
+    
+    /**
+     * Limits the run time of one call of {@link #execute()}. The clock is
+     * read on every {@value Budget#CLOCK_INTERVAL}th backward jump only
+     * 
+     * @param millis The maximum run time in milliseconds or zero for no 
+     * limit (the default)
+     */
+    public void setTimeLimit(long millis) {
+        budget.setTimeLimit(millis * 1000000L);
+    }
+    
+    /**
+     * Returns the number of instructions executed since the VM was created
+     * or reset
+     * 
+     * @return The number of instructions
+     */
+    public long getSteps() {
+        return steps;
+    }
+    
+    /**
+     * Returns the run time
+     * 
+     * @return The time spent in {@link #execute()} since the VM was 
+     * created or reset in nanoseconds
+     */
+    public long getRunNanos() {
+        return runNanos;
+    }
+    
+    /**
+     * Returns the maximum depth the stack can reach. The stack only holds 
+     * loop counters, so this is the loop nesting depth of the program. It 
+     * is computed from the bytecode, so the loops don't pay for tracking it
+     * 
+     * @return The maximum number of values on the stack
+     */
+    public int getMaxStackDepth() {
+        if (maxStackDepth < 0) {
+            int depth = 0, max = 0;
+            for (int i = 0; i < bytecode.length; ) {
+                switch (bytecode[i]) {
+                    case 0x10: // push
+                    case 0x14: // loop
+                        max = Math.max(max, ++depth);
+                        break;
+                    case 0x11: // pop
+                    case 0x15: // next
+                        depth--;
+                        break;
+                }
+                int length = Decoder.length(bytecode[i]);
+                if (length < 0) {
+                    break;
+                }
+                i += length;
+            }
+            maxStackDepth = max;
+        }
+        return maxStackDepth;
+    }
+    
+    /**
+     * Returns why the last execution ended
+     * 
+     * @return The exit status
+     */
+    public ExitStatus getExitStatus() {
+        return status;
+    }
+    
+    /**
+     * Sets how the program is executed. The default is 
+     * {@link ExecutionMode#DECODED}
+     * 
+     * @param mode The execution mode
+     */
+    public void setExecutionMode(ExecutionMode mode) {
+        this.mode = mode;
+    }
+    
+    /**
+     * Returns how the program is executed
+     * 
+     * @return The execution mode
+     */
+    public ExecutionMode getExecutionMode() {
+        return mode;
+    }
+    
+    /**
+     * Checks if the program couldn't be compiled to JVM code. It is decoded 
+     * or interpreted instead of {@link ExecutionMode#COMPILED} then
+     * 
+     * @return <code>true</code> if a compile was tried and failed
+     */
+    public synchronized boolean isCompileFailed() {
+        return compileFailed;
+    }
+    
+    /**
+     * Sets how values are stored and computed. The default is 
+     * {@link NumericMode#INT32}; the other modes ignore the execution mode
+     * and always interpret the program. Must not be changed while a 
+     * program was ended early
+     * 
+     * @param numericMode The numeric mode
+     * @throws IllegalStateException If profiling is on and the mode isn't 
+     * {@link NumericMode#INT32}
+     */
+    public void setNumericMode(NumericMode numericMode) {
+        if (profile != null && numericMode != NumericMode.INT32) {
+            throw new IllegalStateException(
+                    "Only INT32 programs can be profiled");
+        }
+        this.numericMode = numericMode;
+    }
+    
+    /**
+     * Returns how values are stored and computed
+     * 
+     * @return The numeric mode
+     */
+    public NumericMode getNumericMode() {
+        return numericMode;
+    }
+    
+    /**
+     * Turns profiling on or off. A profiled program is always interpreted 
+     * and every instruction is counted; programs which aren't profiled run 
+     * at full speed. Only 
+     * {@link NumericMode#INT32} programs can be profiled. Must not be 
+     * changed while a program was ended early
+     * 
+     * @param profile Receives the counts or <code>null</code> to turn 
+     * profiling off (the default)
+     * @throws IllegalStateException If the numeric mode isn't 
+     * {@link NumericMode#INT32}
+     */
+    public void setProfile(Profile profile) {
+        if (profile != null && profile.length() != bytecode.length) {
+            throw new IllegalArgumentException(
+                    "Profile doesn't match the program");
+        }
+        if (profile != null && numericMode != NumericMode.INT32) {
+            throw new IllegalStateException(
+                    "Only INT32 programs can be profiled");
+        }
+        this.profile = profile;
+    }
+    
+    /**
+     * Returns the profile receiving the execution counts
+     * 
+     * @return The profile or <code>null</code> if profiling is off
+     */
+    public Profile getProfile() {
+        return profile;
     }
     
-    public synchronized final void stop() {
-        isRunning = false;
+    /**
+     * Sets who receives snapshots of the running program. The snapshots 
+     * are taken by the thread running the program on backward jumps, at 
+     * most once per interval; without a listener this costs nothing
+     * 
+     * @param listener The receiver or <code>null</code> for none (the 
+     * default)
+     * @param millis The time between two snapshots
+     */
+    public void setProgressListener(final ProgressListener listener, 
+            long millis) {
+        if (listener == null) {
+            budget.setSampler(null, 0);
+            return;
+        }
+        budget.setSampler(new Budget.Sampler() {
+
+            @Override
+            public void sample(long steps, int pc) {
+                listener.progress(new Progress(steps, pc, 
+                        new Register(register)));
+            }
+        }, millis * 1000000L);
+    }
+    
+    /**
+     * Stops the program at the next backward jump. May be called by any 
+     * thread, even before the program was started
+     */
+    public final void stop() {
+        budget.stop();
     }
     
     public boolean isRunning() {
@@ -67,154 +406,707 @@ public class VM {
     }
     
     /**
-     * Runs the VM
+     * Compiles or decodes the program as requested by the execution mode. 
+     * If this isn't possible the next simpler mode is used. Outside of 
+     * {@link NumericMode#INT32} the program is always interpreted
+     * 
+     * @return The mode the program can be executed with
      */
-    public void execute() {
+    synchronized ExecutionMode prepare() {
+        ExecutionMode m = mode;
+        if (numericMode != NumericMode.INT32) {
+            return ExecutionMode.INTERPRETED;
+        }
+        if (m == ExecutionMode.COMPILED && compiled == null && !compileFailed) {
+            compiled = JitCompiler.compile(bytecode);
+            compileFailed = compiled == null;
+        }
+        if (m == ExecutionMode.COMPILED && compiled == null) {
+            m = ExecutionMode.DECODED;
+        }
+        if (m == ExecutionMode.DECODED && code == null && !decodeFailed) {
+            code = Decoder.decode(bytecode);
+            decodeFailed = code == null;
+        }
+        if (m == ExecutionMode.DECODED && code == null) {
+            m = ExecutionMode.INTERPRETED;
+        }
+        return m;
+    }
+    
+    /**
+     * Runs the VM. If the program ended early a decoded or interpreted 
+     * program continues where it ended on the next call; a compiled program 
+     * can't be continued
+     * 
+     * @return Why the program ended
+     * @throws IllegalStateException If a compiled program ended early and 
+     * the VM wasn't reset since
+     */
+    public ExitStatus execute() {
+        if (abandoned) {
+            throw new IllegalStateException(
+                    "A compiled program can't be continued");
+        }
         isRunning = true;
         isDone = true;
-        int a, b, src, dst, addr;
+        budget.start(steps);
+        Metrics metrics = Metrics.get();
+        metrics.runStarted();
+        long time = System.nanoTime(), before = steps;
         
-        // Execute bytecode
-        while (pc < bytecode.length) {
-            
-            if (isRunning == false) {
-                break;
+        try {
+            if (profile != null) {
+                interpret();
+            } else {
+                ExecutionMode m = prepare();
+                if (m == ExecutionMode.COMPILED && (pc > 0 || sp > 0)) {
+                    // A compiled program can only start at the beginning
+                    m = ExecutionMode.INTERPRETED;
+                }
+                switch (m) {
+                    case COMPILED:
+                        if (!budget.check(steps, pc)) {
+                            steps += compiled.execute(register, budget, steps);
+                        }
+                        if (budget.getStatus() == ExitStatus.FINISHED) {
+                            pc = bytecode.length;
+                        } else {
+                            abandoned = steps > before;
+                        }
+                        break;
+                    case DECODED:
+                        executeDecoded();
+                        break;
+                    default:
+                        if (numericMode == NumericMode.INT32) {
+                            interpret();
+                        } else {
+                            executeWide();
+                        }
+                        break;
+                }
             }
+        } finally {
+            isRunning = false;
+            time = System.nanoTime() - time;
+            runNanos += time;
+            metrics.runFinished(steps - before, time, getMaxStackDepth(), 
+                    register.size());
+        }
+        
+        isDone = true;
+        status = budget.getStatus();
+        return status;
+    }
+    
+    /**
+     * Interprets the bytecode in the 64 bit or arbitrary precision mode
+     */
+    private void executeWide() {
+        if (wide == null) {
+            wide = new WideInterpreter(bytecode, register, budget, numericMode);
+        }
+        wide.steps = steps;
+        try {
+            wide.run();
+        } finally {
+            steps = wide.steps;
+        }
+    }
+    
+    /**
+     * Interprets the bytecode. If profiling is on every instruction and 
+     * every taken branch is counted; otherwise the counters are 
+     * <code>null</code> and the checks are hoisted out of the loop
+     */
+    private void interpret() {
+        int a, b, src, dst, addr, at;
+        long steps = this.steps;
+        final long[] counts = profile != null ? profile.counts : null;
+        final long[] taken = profile != null ? profile.taken : null;
+        
+        // Execute bytecode
+        try {
+            while (pc < bytecode.length) {
+                at = pc;
+                steps++;
+                if (counts != null) {
+                    counts[at]++;
+                }
             
-            // Get the next instruction
-            switch (bytecode[pc++]) {
+                // Get the next instruction
+                switch (bytecode[pc++]) {
 
-                /*
-                 * Arithmetic instructions
-                 */
+                    /*
+                     * Arithmetic instructions
+                     */
                 
-                // Register & immediate add
-                case 0x2a: // add <a> <b> <dst>
-                    a = getValue(bytecode[pc++]);
-                    b = getValue(bytecode[pc++]);
-                    dst = bytecode[pc++] & 0x7fffffff;
-                    register.setValue(dst, a + b);
-                    break;
+                    // Register & immediate add
+                    case 0x2a: // add <a> <b> <dst>
+                        a = getValue(bytecode[pc++]);
+                        b = getValue(bytecode[pc++]);
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        register.setValue(dst, a + b);
+                        break;
                     
-                // Register & immediate subtract
-                case 0x2b: // sub <a> <b> <dst>
-                    a = getValue(bytecode[pc++]);
-                    b = getValue(bytecode[pc++]);
-                    dst = bytecode[pc++] & 0x7fffffff;
+                    // Register & immediate subtract
+                    case 0x2b: // sub <a> <b> <dst>
+                        a = getValue(bytecode[pc++]);
+                        b = getValue(bytecode[pc++]);
+                        dst = bytecode[pc++] & 0x7fffffff;
                     
-                    // Make sure that we don't get negative
-                    src = a - b;
-                    if (src < 0) {
-                        src = 0;
-                    }
+                        // Make sure that we don't get negative
+                        src = a - b;
+                        if (src < 0) {
+                            src = 0;
+                        }
                     
-                    register.setValue(dst, src);
-                    break;
+                        register.setValue(dst, src);
+                        break;
                     
-                // Register & immediate multiply
-                case 0x2c: // mul <a> <b> <dst>
-                    a = getValue(bytecode[pc++]);
-                    b = getValue(bytecode[pc++]);
-                    dst = bytecode[pc++] & 0x7fffffff;
-                    register.setValue(dst, a * b);
-                    break;
+                    // Register & immediate multiply
+                    case 0x2c: // mul <a> <b> <dst>
+                        a = getValue(bytecode[pc++]);
+                        b = getValue(bytecode[pc++]);
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        register.setValue(dst, a * b);
+                        break;
                     
-                // Move register value
-                case 0x2d: // mov <src> <dst>
-                    src = getValue(bytecode[pc++]);
-                    dst = bytecode[pc++] & 0x7fffffff;
-                    register.setValue(dst, src);
-                    break;
+                    // Move register value
+                    case 0x2d: // mov <src> <dst>
+                        src = getValue(bytecode[pc++]);
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        register.setValue(dst, src);
+                        break;
                     
-                /*
-                 * Stack instructions
-                 */
+                    /*
+                     * Stack instructions
+                     */
                 
-                // Push value onto the stack
-                case 0x10: // push <a>
-                    a = getValue(bytecode[pc++]);
-                    stack.push(a);
-                    break;
+                    // Push value onto the stack
+                    case 0x10: // push <a>
+                        a = getValue(bytecode[pc++]);
+                        if (sp == stack.length) {
+                            stack = Arrays.copyOf(stack, sp << 1);
+                        }
+                        stack[sp++] = a;
+                        break;
                 
-                // Pop value from stack
-                case 0x11: // pop
-                    stack.pop();
-                    break;
-                    
-                // Decrement topmost value of stack
-                case 0x12: // dec
-                    stack.push(stack.pop() - 1);
-                    break;
+                    // Pop value from stack
+                    case 0x11: // pop
+                        if (sp == 0) {
+                            throw underflow();
+                        }
+                        sp--;
+                        break;
                     
-                // Branch if value on stack is zero
-                case 0x13: // bz <addr>
-                    addr = bytecode[pc++] & 0x7fffffff;
-                    if (stack.peek() == 0) {
-                        pc = addr;
-                    }
-                    break;
+                    // Decrement topmost value of stack
+                    case 0x12: // dec
+                        if (sp == 0) {
+                            throw underflow();
+                        }
+                        stack[sp - 1]--;
+                        break;
                     
-                /*
-                 * Jump and if instructions
-                 */
+                    // Branch if value on stack is zero
+                    case 0x13: // bz <addr>
+                        if (sp == 0) {
+                            throw underflow();
+                        }
+                        addr = bytecode[pc++] & 0x7fffffff;
+                        if (stack[sp - 1] == 0) {
+                            pc = addr;
+                            if (taken != null) {
+                                taken[at]++;
+                            }
+                        }
+                        break;
                     
-                // Goto address
-                case 0x21: // goto <addr>
-                    pc = bytecode[pc++] & 0x7fffffff;
-                    break;
+                    /*
+                     * Jump and if instructions
+                     */
                     
-                // If not equal
-                case 0x42: // ifneq <a> <b> <addr>
-                    a = getValue(bytecode[pc++]);
-                    b = getValue(bytecode[pc++]);
-                    if (a != b) {
+                    // Goto address
+                    case 0x21: // goto <addr>
                         pc = bytecode[pc++] & 0x7fffffff;
-                    } else {
-                        pc++;
-                    }
-                    break;
+                        if (taken != null) {
+                            taken[at]++;
+                        }
+                        break;
                     
-                // If greater than
-                case 0x43: // ifgt <a> <b> <addr>
-                    a = getValue(bytecode[pc++]);
-                    b = getValue(bytecode[pc++]);
-                    if (a > b) {
-                        pc = bytecode[pc++] & 0x7fffffff;
-                    } else {
-                        pc++;
-                    }
-                    break;
+                    // If not equal
+                    case 0x42: // ifneq <a> <b> <addr>
+                        a = getValue(bytecode[pc++]);
+                        b = getValue(bytecode[pc++]);
+                        if (a != b) {
+                            pc = bytecode[pc++] & 0x7fffffff;
+                            if (taken != null) {
+                                taken[at]++;
+                            }
+                        } else {
+                            pc++;
+                        }
+                        break;
                     
-                // If equals
-                case 0x44: // ifeq <a> <b> <addr>
-                    a = getValue(bytecode[pc++]);
-                    b = getValue(bytecode[pc++]);
-                    if (a == b) {
-                        pc = bytecode[pc++] & 0x7fffffff;
-                    } else {
-                        pc++;
-                    }
-                    break; 
+                    // If greater than
+                    case 0x43: // ifgt <a> <b> <addr>
+                        a = getValue(bytecode[pc++]);
+                        b = getValue(bytecode[pc++]);
+                        if (a > b) {
+                            pc = bytecode[pc++] & 0x7fffffff;
+                            if (taken != null) {
+                                taken[at]++;
+                            }
+                        } else {
+                            pc++;
+                        }
+                        break;
                     
-                /*
-                 * Other instructions
-                 */
+                    // If equals
+                    case 0x44: // ifeq <a> <b> <addr>
+                        a = getValue(bytecode[pc++]);
+                        b = getValue(bytecode[pc++]);
+                        if (a == b) {
+                            pc = bytecode[pc++] & 0x7fffffff;
+                            if (taken != null) {
+                                taken[at]++;
+                            }
+                        } else {
+                            pc++;
+                        }
+                        break; 
                     
-                // No operation
-                case 0x99: // nop
-                    break;
+                    /*
+                     * Other instructions
+                     */
+                    
+                    // No operation
+                    case 0x99: // nop
+                        break;
                     
-                default:
-                    throw new VMException(
-                            String.format("Unkown opcode 0x%02x", bytecode[pc-1])
-                    );
+                    /*
+                     * Fused instructions (see Optimizer)
+                     */
+                    
+                    // Push the loop counter and skip the loop if it is zero
+                    case 0x14: // loop <a> <addr>
+                        a = getValue(bytecode[pc++]);
+                        addr = bytecode[pc++] & 0x7fffffff;
+                        if (a == 0) {
+                            pc = addr;
+                            if (taken != null) {
+                                taken[at]++;
+                            }
+                        } else {
+                            if (sp == stack.length) {
+                                stack = Arrays.copyOf(stack, sp << 1);
+                            }
+                            stack[sp++] = a;
+                        }
+                        break;
+                    
+                    // Decrement the loop counter and repeat the body or leave
+                    // the loop and pop the counter if it is zero
+                    case 0x15: // next <body> <addr>
+                        if (sp == 0) {
+                            throw underflow();
+                        }
+                        if (--stack[sp - 1] == 0) {
+                            sp--;
+                            pc = bytecode[pc + 1] & 0x7fffffff;
+                        } else {
+                            pc = bytecode[pc] & 0x7fffffff;
+                            if (taken != null) {
+                                taken[at]++;
+                            }
+                        }
+                        break;
+                    
+                    // Add an immediate to a register
+                    case 0x2e: // inc <reg> <imm>
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        b = bytecode[pc++] & 0x7fffffff;
+                        register.setValue(dst, register.getValue(dst) + b);
+                        break;
+                    
+                    // Subtract an immediate from a register
+                    case 0x2f: // dcr <reg> <imm>
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        b = bytecode[pc++] & 0x7fffffff;
+                        src = register.getValue(dst) - b;
+                        register.setValue(dst, src < 0 ? 0 : src);
+                        break;
+                    
+                    // Subtract an immediate from a register and branch if 
+                    // the result is not zero
+                    case 0x45: // dbnz <reg> <imm> <addr>
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        b = bytecode[pc++] & 0x7fffffff;
+                        src = register.getValue(dst) - b;
+                        if (src < 0) {
+                            src = 0;
+                        }
+                        register.setValue(dst, src);
+                        if (src != 0) {
+                            pc = bytecode[pc++] & 0x7fffffff;
+                            if (taken != null) {
+                                taken[at]++;
+                            }
+                        } else {
+                            pc++;
+                        }
+                        break;
+                    
+                    // Repeated addition: d := d + k * n1 * n2
+                    case 0x30: // addn <d> <k> <n1> <n2>
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        b = getValue(bytecode[pc++]);
+                        b *= getValue(bytecode[pc++]);
+                        b *= getValue(bytecode[pc++]);
+                        register.setValue(dst, register.getValue(dst) + b);
+                        break;
+                    
+                    // Repeated (saturating) subtraction, n1 * n2 times
+                    case 0x31: // subn <d> <k> <n1> <n2>
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        b = getValue(bytecode[pc++]);
+                        a = getValue(bytecode[pc++]);
+                        src = getValue(bytecode[pc++]);
+                        register.setValue(dst, Arithmetic.subtractRepeatedly(
+                                register.getValue(dst), b, a, src));
+                        break;
+                    
+                    // Assignment if both counts are not zero
+                    case 0x32: // setn <d> <k> <n1> <n2>
+                        dst = bytecode[pc++] & 0x7fffffff;
+                        b = getValue(bytecode[pc++]);
+                        a = getValue(bytecode[pc++]);
+                        src = getValue(bytecode[pc++]);
+                        if (a != 0 && src != 0) {
+                            register.setValue(dst, b);
+                        }
+                        break;
+                    
+                    default:
+                        throw new VMException(
+                                String.format("Unkown opcode 0x%02x", bytecode[pc-1])
+                        );
                 
-            }
+                }
             
+                // Check the budget on backward jumps
+                if (pc <= at && budget.check(steps, pc)) {
+                    break;
+                }
+            }
+        } finally {
+            this.steps = steps;
         }
+    }
+    
+    /**
+     * Executes the decoded program
+     */
+    private void executeDecoded() {
+        final int[] code = this.code;
+        final Register register = this.register;
+        int[] stack = this.stack;
+        final Budget budget = this.budget;
+        int pc = this.pc, sp = this.sp, v, at;
+        long steps = this.steps;
         
-        isRunning = false;
-        isDone = true;
+        try {
+            while (pc < code.length) {
+                at = pc;
+                steps++;
+
+                switch (code[pc]) {
+
+                    case Decoder.ADD_RR:
+                        register.setValue(code[pc + 3], 
+                                register.getValue(code[pc + 1]) 
+                                + register.getValue(code[pc + 2]));
+                        pc += 4;
+                        break;
+                    case Decoder.ADD_RI:
+                        register.setValue(code[pc + 3], 
+                                register.getValue(code[pc + 1]) + code[pc + 2]);
+                        pc += 4;
+                        break;
+                    case Decoder.ADD_IR:
+                        register.setValue(code[pc + 3], 
+                                code[pc + 1] + register.getValue(code[pc + 2]));
+                        pc += 4;
+                        break;
+                    case Decoder.ADD_II:
+                        register.setValue(code[pc + 3], code[pc + 1] + code[pc + 2]);
+                        pc += 4;
+                        break;
+
+                    // Subtraction never gets negative
+                    case Decoder.SUB_RR:
+                        v = register.getValue(code[pc + 1]) 
+                                - register.getValue(code[pc + 2]);
+                        register.setValue(code[pc + 3], v < 0 ? 0 : v);
+                        pc += 4;
+                        break;
+                    case Decoder.SUB_RI:
+                        v = register.getValue(code[pc + 1]) - code[pc + 2];
+                        register.setValue(code[pc + 3], v < 0 ? 0 : v);
+                        pc += 4;
+                        break;
+                    case Decoder.SUB_IR:
+                        v = code[pc + 1] - register.getValue(code[pc + 2]);
+                        register.setValue(code[pc + 3], v < 0 ? 0 : v);
+                        pc += 4;
+                        break;
+                    case Decoder.SUB_II:
+                        v = code[pc + 1] - code[pc + 2];
+                        register.setValue(code[pc + 3], v < 0 ? 0 : v);
+                        pc += 4;
+                        break;
+
+                    case Decoder.MUL_RR:
+                        register.setValue(code[pc + 3], 
+                                register.getValue(code[pc + 1]) 
+                                * register.getValue(code[pc + 2]));
+                        pc += 4;
+                        break;
+                    case Decoder.MUL_RI:
+                        register.setValue(code[pc + 3], 
+                                register.getValue(code[pc + 1]) * code[pc + 2]);
+                        pc += 4;
+                        break;
+                    case Decoder.MUL_IR:
+                        register.setValue(code[pc + 3], 
+                                code[pc + 1] * register.getValue(code[pc + 2]));
+                        pc += 4;
+                        break;
+                    case Decoder.MUL_II:
+                        register.setValue(code[pc + 3], code[pc + 1] * code[pc + 2]);
+                        pc += 4;
+                        break;
+
+                    case Decoder.MOV_R:
+                        register.setValue(code[pc + 2], register.getValue(code[pc + 1]));
+                        pc += 3;
+                        break;
+                    case Decoder.MOV_I:
+                        register.setValue(code[pc + 2], code[pc + 1]);
+                        pc += 3;
+                        break;
+
+                    case Decoder.PUSH_R:
+                        v = register.getValue(code[pc + 1]);
+                        if (sp == stack.length) {
+                            stack = this.stack = Arrays.copyOf(stack, sp << 1);
+                        }
+                        stack[sp++] = v;
+                        pc += 2;
+                        break;
+                    case Decoder.PUSH_I:
+                        v = code[pc + 1];
+                        if (sp == stack.length) {
+                            stack = this.stack = Arrays.copyOf(stack, sp << 1);
+                        }
+                        stack[sp++] = v;
+                        pc += 2;
+                        break;
+                    case Decoder.POP:
+                        if (sp == 0) {
+                            this.pc = pc + 1;
+                            throw underflow();
+                        }
+                        sp--;
+                        pc++;
+                        break;
+                    case Decoder.DEC:
+                        if (sp == 0) {
+                            this.pc = pc + 1;
+                            throw underflow();
+                        }
+                        stack[sp - 1]--;
+                        pc++;
+                        break;
+                    case Decoder.BZ:
+                        if (sp == 0) {
+                            this.pc = pc + 1;
+                            throw underflow();
+                        }
+                        pc = stack[sp - 1] == 0 ? code[pc + 1] : pc + 2;
+                        break;
+
+                    case Decoder.GOTO:
+                        pc = code[pc + 1];
+                        break;
+
+                    case Decoder.IFNEQ_RR:
+                        pc = register.getValue(code[pc + 1]) 
+                                != register.getValue(code[pc + 2]) ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFNEQ_RI:
+                        pc = register.getValue(code[pc + 1]) != code[pc + 2] ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFNEQ_IR:
+                        pc = code[pc + 1] != register.getValue(code[pc + 2]) ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFNEQ_II:
+                        pc = code[pc + 1] != code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+
+                    case Decoder.IFGT_RR:
+                        pc = register.getValue(code[pc + 1]) 
+                                > register.getValue(code[pc + 2]) ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFGT_RI:
+                        pc = register.getValue(code[pc + 1]) > code[pc + 2] ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFGT_IR:
+                        pc = code[pc + 1] > register.getValue(code[pc + 2]) ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFGT_II:
+                        pc = code[pc + 1] > code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+
+                    case Decoder.IFEQ_RR:
+                        pc = register.getValue(code[pc + 1]) 
+                                == register.getValue(code[pc + 2]) ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFEQ_RI:
+                        pc = register.getValue(code[pc + 1]) == code[pc + 2] ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFEQ_IR:
+                        pc = code[pc + 1] == register.getValue(code[pc + 2]) ? 
+                                code[pc + 3] : pc + 4;
+                        break;
+                    case Decoder.IFEQ_II:
+                        pc = code[pc + 1] == code[pc + 2] ? code[pc + 3] : pc + 4;
+                        break;
+
+                    case Decoder.NOP:
+                        pc++;
+                        break;
+
+                    case Decoder.LOOP_R:
+                        v = register.getValue(code[pc + 1]);
+                        if (v == 0) {
+                            pc = code[pc + 2];
+                            break;
+                        }
+                        if (sp == stack.length) {
+                            stack = this.stack = Arrays.copyOf(stack, sp << 1);
+                        }
+                        stack[sp++] = v;
+                        pc += 3;
+                        break;
+                    case Decoder.LOOP_I:
+                        v = code[pc + 1];
+                        if (v == 0) {
+                            pc = code[pc + 2];
+                            break;
+                        }
+                        if (sp == stack.length) {
+                            stack = this.stack = Arrays.copyOf(stack, sp << 1);
+                        }
+                        stack[sp++] = v;
+                        pc += 3;
+                        break;
+                    case Decoder.NEXT:
+                        if (sp == 0) {
+                            this.pc = pc + 1;
+                            throw underflow();
+                        }
+                        if (--stack[sp - 1] == 0) {
+                            sp--;
+                            pc = code[pc + 2];
+                        } else {
+                            pc = code[pc + 1];
+                        }
+                        break;
+
+                    case Decoder.INC:
+                        register.setValue(code[pc + 1], 
+                                register.getValue(code[pc + 1]) + code[pc + 2]);
+                        pc += 3;
+                        break;
+                    case Decoder.DCR:
+                        v = register.getValue(code[pc + 1]) - code[pc + 2];
+                        register.setValue(code[pc + 1], v < 0 ? 0 : v);
+                        pc += 3;
+                        break;
+                    case Decoder.DBNZ:
+                        v = register.getValue(code[pc + 1]) - code[pc + 2];
+                        if (v < 0) {
+                            v = 0;
+                        }
+                        register.setValue(code[pc + 1], v);
+                        pc = v != 0 ? code[pc + 3] : pc + 4;
+                        break;
+
+                    // The summary instructions keep their operands tagged
+                    case Decoder.ADDN:
+                        v = getValue(code[pc + 2]) * getValue(code[pc + 3]) 
+                                * getValue(code[pc + 4]);
+                        register.setValue(code[pc + 1], 
+                                register.getValue(code[pc + 1]) + v);
+                        pc += 5;
+                        break;
+                    case Decoder.SUBN:
+                        register.setValue(code[pc + 1], 
+                                Arithmetic.subtractRepeatedly(
+                                        register.getValue(code[pc + 1]), 
+                                        getValue(code[pc + 2]), 
+                                        getValue(code[pc + 3]), 
+                                        getValue(code[pc + 4])));
+                        pc += 5;
+                        break;
+                    case Decoder.SETN:
+                        v = getValue(code[pc + 2]);
+                        if (getValue(code[pc + 3]) != 0 
+                                && getValue(code[pc + 4]) != 0) {
+                            register.setValue(code[pc + 1], v);
+                        }
+                        pc += 5;
+                        break;
+
+                    default:
+                        throw new VMException(
+                                String.format("Unkown opcode 0x%02x", bytecode[pc])
+                        );
+                }
+
+                // Check the budget on backward jumps
+                if (pc <= at && budget.check(steps, pc)) {
+                    break;
+                }
+            }
+        } finally {
+            this.pc = pc;
+            this.sp = sp;
+            this.steps = steps;
+        }
+    }
+    
+    /**
+     * Creates the exception for an instruction which needs a value on the
+     * stack but the stack is empty
+     * 
+     * @return The exception to throw
+     */
+    private VMException underflow() {
+        return new VMException(String.format(
+                "Stack underflow at #%d (opcode 0x%02x)", 
+                pc - 1, bytecode[pc - 1]
+        ));
     }
     
     /**
@@ -11,4 +11,8 @@ public class VMException extends RuntimeException {
         super(message);
     }
     
+    public VMException(String message, Throwable cause) {
+        super(message, cause);
+    }
+    
 }
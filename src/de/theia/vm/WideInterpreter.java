@@ -0,0 +1,475 @@
+package de.theia.vm;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Interprets the bytecode with 64 bit or unlimited registers (see
+ * {@link NumericMode}). All arithmetic is done on longs using the exact
+ * operations of {@link Math}; only if one of them overflows the result is
+ * computed as {@link BigInteger}. In {@link NumericMode#ARBITRARY} it is
+ * stored as a big register, otherwise the program stops.
+ *
+ * Unlike in {@link NumericMode#INT32} a loop count can't wrap around, so
+ * a negative loop count stops the program.
+ *
+ * @author maximilianstrauch
+ */
+final class WideInterpreter {
+
+    /**
+     * The program
+     */
+    private final int[] bytecode;
+
+    /**
+     * The registers
+     */
+    private final Register register;
+
+    /**
+     * Maximum number of bits of a big register; larger results are an
+     * overflow even in {@link NumericMode#ARBITRARY}, so neither the heap
+     * nor the range of {@link BigInteger} are exhausted
+     */
+    static final int MAX_BITS = 1 << 24;
+
+    /**
+     * Limits the execution
+     */
+    private final Budget budget;
+
+    /**
+     * <code>true</code> to store overflowing results as big registers
+     */
+    private final boolean promote;
+
+    /**
+     * The program counter and the address of the current instruction
+     */
+    private int pc, at;
+
+    /**
+     * The loop counter stack and the stack pointer
+     */
+    private long[] stack;
+    private int sp;
+
+    /**
+     * Number of executed instructions
+     */
+    long steps;
+
+    /**
+     * Creates a new interpreter
+     *
+     * @param bytecode The program
+     * @param register The registers
+     * @param budget Limits the execution
+     * @param mode {@link NumericMode#INT64} or {@link NumericMode#ARBITRARY}
+     */
+    WideInterpreter(int[] bytecode, Register register, Budget budget,
+            NumericMode mode) {
+        this.bytecode = bytecode;
+        this.register = register;
+        this.budget = budget;
+        this.promote = mode == NumericMode.ARBITRARY;
+        this.stack = new long[16];
+    }
+
+    /**
+     * Runs the program until it ends or the budget is exhausted
+     */
+    void run() {
+        int a, b, dst;
+        long x, y;
+
+        while (pc < bytecode.length) {
+            at = pc;
+            steps++;
+
+            switch (bytecode[pc++]) {
+
+                case 0x2a: // add <a> <b> <dst>
+                    a = bytecode[pc++];
+                    b = bytecode[pc++];
+                    dst = bytecode[pc++] & 0x7fffffff;
+                    if (isBig(a) || isBig(b)) {
+                        store(dst, big(a).add(big(b)));
+                        break;
+                    }
+                    x = value(a);
+                    y = value(b);
+                    try {
+                        register.setLong(dst, Math.addExact(x, y));
+                    } catch (ArithmeticException e) {
+                        store(dst, BigInteger.valueOf(x).add(BigInteger.valueOf(y)));
+                    }
+                    break;
+
+                case 0x2b: // sub <a> <b> <dst>
+                    a = bytecode[pc++];
+                    b = bytecode[pc++];
+                    dst = bytecode[pc++] & 0x7fffffff;
+                    if (isBig(a) || isBig(b)) {
+                        store(dst, saturate(big(a).subtract(big(b))));
+                        break;
+                    }
+                    x = value(a);
+                    y = value(b);
+                    try {
+                        register.setLong(dst, Math.max(Math.subtractExact(x, y), 0));
+                    } catch (ArithmeticException e) {
+                        store(dst, saturate(BigInteger.valueOf(x)
+                                .subtract(BigInteger.valueOf(y))));
+                    }
+                    break;
+
+                case 0x2c: // mul <a> <b> <dst>
+                    a = bytecode[pc++];
+                    b = bytecode[pc++];
+                    dst = bytecode[pc++] & 0x7fffffff;
+                    if (isBig(a) || isBig(b)) {
+                        store(dst, multiply(big(a), big(b)));
+                        break;
+                    }
+                    x = value(a);
+                    y = value(b);
+                    try {
+                        register.setLong(dst, Math.multiplyExact(x, y));
+                    } catch (ArithmeticException e) {
+                        store(dst, BigInteger.valueOf(x).multiply(BigInteger.valueOf(y)));
+                    }
+                    break;
+
+                case 0x2d: // mov <src> <dst>
+                    a = bytecode[pc++];
+                    dst = bytecode[pc++] & 0x7fffffff;
+                    if (isBig(a)) {
+                        register.setBig(dst, big(a));
+                    } else {
+                        register.setLong(dst, value(a));
+                    }
+                    break;
+
+                case 0x10: // push <a>
+                    push(count(bytecode[pc++]));
+                    break;
+
+                case 0x11: // pop
+                    if (sp == 0) {
+                        throw underflow();
+                    }
+                    sp--;
+                    break;
+
+                case 0x12: // dec
+                    if (sp == 0) {
+                        throw underflow();
+                    }
+                    stack[sp - 1]--;
+                    break;
+
+                case 0x13: // bz <addr>
+                    if (sp == 0) {
+                        throw underflow();
+                    }
+                    a = bytecode[pc++] & 0x7fffffff;
+                    if (stack[sp - 1] == 0) {
+                        pc = a;
+                    }
+                    break;
+
+                case 0x21: // goto <addr>
+                    pc = bytecode[pc] & 0x7fffffff;
+                    break;
+
+                case 0x42: // ifneq <a> <b> <addr>
+                case 0x43: // ifgt <a> <b> <addr>
+                case 0x44: // ifeq <a> <b> <addr>
+                    a = compare(bytecode[pc], bytecode[pc + 1]);
+                    dst = bytecode[at];
+                    if (dst == 0x42 ? a != 0 : dst == 0x43 ? a > 0 : a == 0) {
+                        pc = bytecode[pc + 2] & 0x7fffffff;
+                    } else {
+                        pc += 3;
+                    }
+                    break;
+
+                case 0x99: // nop
+                    break;
+
+                case 0x14: // loop <a> <addr>
+                    x = count(bytecode[pc++]);
+                    a = bytecode[pc++] & 0x7fffffff;
+                    if (x == 0) {
+                        pc = a;
+                    } else {
+                        push(x);
+                    }
+                    break;
+
+                case 0x15: // next <body> <addr>
+                    if (sp == 0) {
+                        throw underflow();
+                    }
+                    if (--stack[sp - 1] == 0) {
+                        sp--;
+                        pc = bytecode[pc + 1] & 0x7fffffff;
+                    } else {
+                        pc = bytecode[pc] & 0x7fffffff;
+                    }
+                    break;
+
+                case 0x2e: // inc <reg> <imm>
+                case 0x2f: // dcr <reg> <imm>
+                case 0x45: // dbnz <reg> <imm> <addr>
+                    dst = bytecode[pc++] & 0x7fffffff;
+                    y = bytecode[pc++] & 0x7fffffff;
+                    if (bytecode[at] == 0x2e) {
+                        y = -y;
+                    }
+                    if (register.isBig(dst)) {
+                        store(dst, saturate(register.getBig(dst)
+                                .subtract(BigInteger.valueOf(y)), y > 0));
+                    } else {
+                        // No overflow since y has at most 32 bits
+                        x = register.getLong(dst);
+                        if (y < 0 && x > Long.MAX_VALUE + y) {
+                            store(dst, BigInteger.valueOf(x).subtract(BigInteger.valueOf(y)));
+                        } else {
+                            register.setLong(dst, y > 0 ? Math.max(x - y, 0) : x - y);
+                        }
+                    }
+                    if (bytecode[at] == 0x45) {
+                        if (register.isBig(dst) || register.getLong(dst) != 0) {
+                            pc = bytecode[pc] & 0x7fffffff;
+                        } else {
+                            pc++;
+                        }
+                    }
+                    break;
+
+                case 0x30: // addn <d> <k> <n1> <n2>
+                case 0x31: // subn <d> <k> <n1> <n2>
+                case 0x32: // setn <d> <k> <n1> <n2>
+                    summary(bytecode[at]);
+                    pc += 4;
+                    break;
+
+                default:
+                    throw new VMException(
+                            String.format("Unkown opcode 0x%02x", bytecode[at])
+                    );
+            }
+
+            // Check the budget on backward jumps
+            if (pc <= at && budget.check(steps, pc)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Executes a loop summary (see {@link Compiler#setSummarization(boolean)})
+     *
+     * @param op The opcode
+     */
+    private void summary(int op) {
+        int dst = bytecode[pc] & 0x7fffffff;
+        int k = bytecode[pc + 1];
+        long n1 = count(bytecode[pc + 2]), n2 = count(bytecode[pc + 3]);
+        if (n1 == 0 || n2 == 0) {
+            return;
+        }
+
+        if (op == 0x32) {
+            // setn: d := k
+            if (isBig(k)) {
+                register.setBig(dst, big(k));
+            } else {
+                register.setLong(dst, value(k));
+            }
+            return;
+        }
+
+        // Loop counts beyond 64 bits never end, so saturate the product
+        BigInteger n = BigInteger.valueOf(n1).multiply(BigInteger.valueOf(n2));
+        BigInteger d = register.getBig(dst), kb = big(k);
+        if (op == 0x30) {
+            // addn: d := d + k * n
+            store(dst, d.add(multiply(kb, n)));
+        } else if (kb.signum() >= 0) {
+            // subn, decreasing: every step saturates at zero
+            store(dst, saturate(d.subtract(multiply(kb, n))));
+        } else {
+            // subn, increasing: only the first step can saturate
+            store(dst, saturate(d.subtract(kb)).subtract(
+                    multiply(kb, n.subtract(BigInteger.ONE))));
+        }
+    }
+
+    /**
+     * Tests if an operand is a big register
+     *
+     * @param arg The tagged operand
+     * @return <code>true</code> for a big register
+     */
+    private boolean isBig(int arg) {
+        return (arg & 0x80000000) != 0 && register.isBig(arg & 0x7fffffff);
+    }
+
+    /**
+     * Returns the value of an operand which is not a big register
+     *
+     * @param arg The tagged operand
+     * @return The value
+     */
+    private long value(int arg) {
+        if ((arg & 0x80000000) != 0) {
+            return register.getLong(arg & 0x7fffffff);
+        }
+        return arg & 0x7fffffff;
+    }
+
+    /**
+     * Returns the value of any operand
+     *
+     * @param arg The tagged operand
+     * @return The value
+     */
+    private BigInteger big(int arg) {
+        if ((arg & 0x80000000) != 0) {
+            return register.getBig(arg & 0x7fffffff);
+        }
+        return BigInteger.valueOf(arg & 0x7fffffff);
+    }
+
+    /**
+     * Compares two operands
+     *
+     * @param a The first tagged operand
+     * @param b The second tagged operand
+     * @return A negative number, zero or a positive number if the first
+     * operand is less than, equal to or greater than the second one
+     */
+    private int compare(int a, int b) {
+        if (isBig(a) || isBig(b)) {
+            return big(a).compareTo(big(b));
+        }
+        return Long.compare(value(a), value(b));
+    }
+
+    /**
+     * Returns the value of an operand used as loop count
+     *
+     * @param arg The tagged operand
+     * @return The loop count; {@link Long#MAX_VALUE} for counts beyond
+     * 64 bits since such a loop never ends anyway
+     */
+    private long count(int arg) {
+        BigInteger b = null;
+        long n;
+        if (isBig(arg)) {
+            b = big(arg);
+            n = b.signum() < 0 ? -1 : Long.MAX_VALUE;
+        } else {
+            n = value(arg);
+        }
+        if (n < 0) {
+            throw new VMException(String.format(
+                    "Negative loop count %s at #%d (opcode 0x%02x)",
+                    b != null ? b : n, at, bytecode[at]
+            ));
+        }
+        return n;
+    }
+
+    /**
+     * Stores a result which doesn't fit into a long if the numeric mode
+     * allows it
+     *
+     * @param dst The register number
+     * @param value The value
+     */
+    private void store(int dst, BigInteger value) {
+        if (value.bitLength() > (promote ? MAX_BITS : 63)) {
+            throw overflow();
+        }
+        register.setBig(dst, value);
+    }
+
+    /**
+     * Multiplies two big values. The product is checked before it is
+     * computed, since it may take long or exceed the range of
+     * {@link BigInteger}
+     *
+     * @param a The first factor
+     * @param b The second factor
+     * @return The product
+     */
+    private BigInteger multiply(BigInteger a, BigInteger b) {
+        if (a.signum() != 0 && b.signum() != 0
+                && (long) a.bitLength() + b.bitLength() > MAX_BITS + 1) {
+            throw overflow();
+        }
+        return a.multiply(b);
+    }
+
+    /**
+     * Creates the exception for a result which is too large
+     *
+     * @return The exception to throw
+     */
+    private VMException overflow() {
+        return new VMException(String.format(
+                "Overflow at #%d (opcode 0x%02x)", at, bytecode[at]
+        ));
+    }
+
+    /**
+     * Replaces a negative value by zero
+     *
+     * @param value The value
+     * @return The value or zero
+     */
+    private static BigInteger saturate(BigInteger value) {
+        return value.signum() < 0 ? BigInteger.ZERO : value;
+    }
+
+    /**
+     * Replaces a negative value by zero if requested
+     *
+     * @param value The value
+     * @param saturate <code>true</code> to saturate
+     * @return The value or zero
+     */
+    private static BigInteger saturate(BigInteger value, boolean saturate) {
+        return saturate ? saturate(value) : value;
+    }
+
+    /**
+     * Pushes a loop count
+     *
+     * @param value The loop count
+     */
+    private void push(long value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp << 1);
+        }
+        stack[sp++] = value;
+    }
+
+    /**
+     * Creates the exception for an instruction which needs a value on the
+     * stack but the stack is empty
+     *
+     * @return The exception to throw
+     */
+    private VMException underflow() {
+        return new VMException(String.format(
+                "Stack underflow at #%d (opcode 0x%02x)", at, bytecode[at]
+        ));
+    }
+
+}
@@ -0,0 +1,107 @@
+package de.theia.vm;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link Compiler}
+ *
+ * @author maximilianstrauch
+ */
+public class CompilerTest {
+
+    /**
+     * Number of statements of the long programs
+     */
+    private static final int STATEMENTS = 1000000;
+
+    /**
+     * Stack size of the compiling thread; much smaller than needed if the
+     * recursion depth grew with the number of statements
+     */
+    private static final long STACK_SIZE = 512 * 1024;
+
+    /**
+     * Creates a sequence of statements incrementing x1
+     *
+     * @param count The number of statements
+     * @return The source code
+     */
+    private static StringBuilder sequence(int count) {
+        StringBuilder b = new StringBuilder(count * 15);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                b.append(" ;\n");
+            }
+            b.append("x1 := x1 + 1");
+        }
+        return b;
+    }
+
+    /**
+     * Compiles a program on a thread with a small stack
+     *
+     * @param source The source code
+     * @param language The language
+     * @return The bytecode
+     * @throws Throwable If the compiler failed
+     */
+    private static int[] compile(final CharSequence source,
+            final Language language) throws Throwable {
+        final int[][] bytecode = new int[1][];
+        final Throwable[] error = new Throwable[1];
+        Thread t = new Thread(null, new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    bytecode[0] = new Compiler(new Lexer(source), language)
+                            .compile();
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        }, "compiler", STACK_SIZE);
+        t.start();
+        t.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return bytecode[0];
+    }
+
+    /**
+     * Runs a program
+     *
+     * @param bytecode The program
+     * @param x2 The initial value of x2
+     * @return The registers afterwards
+     */
+    private static Register run(int[] bytecode, int x2) {
+        Register register = new Register();
+        register.setValue(2, x2);
+        assertEquals(ExitStatus.FINISHED, new VM(bytecode, register).execute());
+        return register;
+    }
+
+    @Test
+    public void testMillionStatementsLoop() throws Throwable {
+        int[] bytecode = compile(sequence(STATEMENTS), Language.LOOP);
+        assertEquals(STATEMENTS, run(bytecode, 0).getValue(1));
+    }
+
+    @Test
+    public void testMillionStatementsWhile() throws Throwable {
+        int[] bytecode = compile(sequence(STATEMENTS), Language.WHILE);
+        assertEquals(STATEMENTS, run(bytecode, 0).getValue(1));
+    }
+
+    @Test
+    public void testMillionStatementsInLoopBody() throws Throwable {
+        StringBuilder source = new StringBuilder("loop x2 do\n")
+                .append(sequence(STATEMENTS)).append("\nend");
+        int[] bytecode = compile(source, Language.LOOP);
+        assertEquals(2 * STATEMENTS, run(bytecode, 2).getValue(1));
+    }
+
+}